@@ -3,7 +3,19 @@ package simpledb;
 import java.io.*;
 
 import java.util.*;
+import java.util.concurrent.Callable;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
 
 
 /**
@@ -14,6 +26,29 @@ import java.util.concurrent.ConcurrentHashMap;
  * The BufferPool is also responsible for locking;  when a transaction fetches
  * a page, BufferPool checks that the transaction has the appropriate
  * locks to read/write the page.
+ * <p>
+ * Pages are not written when their transaction commits.  Commit logs the
+ * changes, and a background writer thread writes committed pages soon
+ * after, in page order and after forcing the log, so that eviction usually
+ * finds a clean page and never waits for a write.
+ * <p>
+ * Pinned pages are never evicted; insertTuple and deleteTuple pin the
+ * pages they fetch READ_WRITE until they have marked them dirty.  When
+ * every unpinned page is dirty, eviction moves one to a temporary spill
+ * file instead (see {@link #setSpilling}), so a transaction may dirty
+ * more pages than the pool holds.  With spilling off, eviction waits a
+ * while for a page to become clean or unpinned before giving up.
+ * <p>
+ * The pool can be resized while in use with {@link #resize}, and
+ * {@link #getStats} reports its size and activity.
+ * <p>
+ * Large sequential scans can read through a {@link ScanRing} instead of
+ * the pool (see {@link #getScanPage}), so they don't push out the pages
+ * that other queries keep using.
+ * <p>
+ * To come back warm after a restart, the pool saves the ids of its
+ * resident pages, hottest first, to a hot-page file at shutdown and, if
+ * asked, periodically; {@link Catalog#loadSchema} prefetches them.
  * 
  * @Threadsafe, all fields are final
  */
@@ -28,23 +63,137 @@ public class BufferPool {
     constructor instead. */
     public static final int DEFAULT_PAGES = 50;
 
-    final int numPages;
+    private volatile int numPages;
     final ConcurrentHashMap<PageId,Page> pages; // hash table storing current pages in memory
-    private final Random random = new Random(); // for choosing random pages for eviction
+    private final ReplacementPolicy policy; // chooses which page to evict
+    // reads in progress; concurrent misses on a page wait for the same read
+    private final ConcurrentHashMap<PageId,FutureTask<Page>> loading;
+    // pages each running transaction may have dirtied: every page it fetched
+    // READ_WRITE or modified through insertTuple/deleteTuple
+    private final ConcurrentHashMap<TransactionId,Set<PageId>> dirtied;
+    // dirty-page table: for each dirty page, the log position when it was
+    // first dirtied after it was last written (its recLSN)
+    private final ConcurrentHashMap<PageId,Long> recLSNs;
+    // NO FORCE: committed pages that have not been written yet, each with
+    // the commit that last changed it
+    private final ConcurrentHashMap<PageId,Long> unwritten;
+    private final AtomicLong commits = new AtomicLong();
+    // pages written while the transaction that dirtied them is running
+    // (stolen), until it finishes.  The before image of a page only moves
+    // forward when the transaction commits, so an abort can put back the
+    // committed version even if the stolen page has left the pool.
+    private final ConcurrentHashMap<PageId,Stolen> stolen;
+
+    /** How long the background writer waits, once woken, for more commits to batch with. */
+    static final long WRITER_DELAY_MILLIS = 5;
+    /** How long the background writer stays around with nothing to write. */
+    static final long WRITER_IDLE_MILLIS = 1000;
+
+    // the background writer; writer, writerWanted and closed are protected
+    // by writerLock
+    private final Object writerLock = new Object();
+    private Thread writer = null;
+    private boolean writerWanted = false;
+    private boolean closed = false;
+
+    // serializes writes of pages to their files, so that an older image
+    // can never overwrite a newer one
+    private final Object diskLock = new Object();
+
+    /** How long eviction waits for a page to become clean or unpinned. */
+    static final long EVICTION_WAIT_MILLIS = 1000;
+
+    // pin counts of pinned pages; protected by this
+    private final HashMap<PageId,Integer> pins = new HashMap<PageId,Integer>();
+    // the pages pinned by the insertTuple or deleteTuple running in this thread
+    private final ThreadLocal<List<PageId>> operationPins = new ThreadLocal<List<PageId>>();
+
+    // dirty pages moved to the spill file; spill is created on first use and
+    // protected by this
+    private final ConcurrentHashMap<PageId,Spilled> spilled;
+    private SpillFile spill = null;
+    private volatile boolean spilling = true;
+
+    /** Number of frames in the ring of a large sequential scan. */
+    public static final int SCAN_RING_PAGES = 8;
+    /** A scan of more than 1/LARGE_SCAN_FRACTION of the pool is large. */
+    static final int LARGE_SCAN_FRACTION = 4;
+
+    /** Name of the hot-page file that Catalog.loadSchema() uses, next to the catalog. */
+    public static final String HOT_PAGES_FILENAME = "hotpages";
+    /** Number of threads that prefetchHotPages() reads with. */
+    static final int PREFETCH_THREADS = 4;
+
+    // where saveHotPages() writes; the timer is protected by this
+    private volatile File hotPagesFile = null;
+    private Timer hotPageSaver = null;
+
+    // activity counters reported by getStats()
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong evictions = new AtomicLong();
+    private final AtomicLong spills = new AtomicLong();
+    private final AtomicLong writes = new AtomicLong();
+
+    // NO STEAL: only clean pages may leave the pool
+    private final ReplacementPolicy.Evictable cleanPages = new ReplacementPolicy.Evictable() {
+	public boolean canEvict(PageId pid) {
+	    Page p = pages.get(pid);
+	    return p != null && p.isDirty() == null && !unwritten.containsKey(pid)
+		&& !pins.containsKey(pid);
+	}
+    };
+
+    // pages that may leave the pool once they have been written
+    private final ReplacementPolicy.Evictable committedPages = new ReplacementPolicy.Evictable() {
+	public boolean canEvict(PageId pid) {
+	    Page p = pages.get(pid);
+	    return p != null && p.isDirty() == null && !pins.containsKey(pid);
+	}
+    };
+
+    // pages that may be moved to the spill file
+    private final ReplacementPolicy.Evictable dirtyPages = new ReplacementPolicy.Evictable() {
+	public boolean canEvict(PageId pid) {
+	    Page p = pages.get(pid);
+	    return p instanceof HeapPage && p.isDirty() != null && !pins.containsKey(pid);
+	}
+    };
 
     /* For Lab 4: instance of a private Lock Manager class. 
        Should be instantiated in the constructor for BufferPool. */
     private final LockManager lockmgr; // Added for Lab 4
 
     /**
-     * Creates a BufferPool that caches up to numPages pages.
+     * Creates a BufferPool that caches up to numPages pages, using CLOCK
+     * page replacement.
      *
      * @param numPages maximum number of pages in this buffer pool.
      */
     public BufferPool(int numPages) {
+	this(numPages, new ClockReplacementPolicy());
+    }
+
+    /**
+     * Creates a BufferPool that caches up to numPages pages and uses the
+     * given policy to choose pages to evict.
+     *
+     * @param numPages maximum number of pages in this buffer pool.
+     * @param policy the page replacement policy, e.g. {@link ClockReplacementPolicy}
+     *   or {@link TwoQueueReplacementPolicy}
+     */
+    public BufferPool(int numPages, ReplacementPolicy policy) {
 	
 	this.numPages = numPages;
 	this.pages = new ConcurrentHashMap<PageId, Page>();
+	this.loading = new ConcurrentHashMap<PageId, FutureTask<Page>>();
+	this.dirtied = new ConcurrentHashMap<TransactionId, Set<PageId>>();
+	this.recLSNs = new ConcurrentHashMap<PageId, Long>();
+	this.unwritten = new ConcurrentHashMap<PageId, Long>();
+	this.stolen = new ConcurrentHashMap<PageId, Stolen>();
+	this.spilled = new ConcurrentHashMap<PageId, Spilled>();
+	this.policy = policy;
+	policy.setCapacity(numPages);
 	
 	lockmgr = new LockManager(); // Added for Lab 4
     }
@@ -70,6 +219,10 @@ public class BufferPool {
      * be added to the buffer pool and returned.  If there is insufficient
      * space in the buffer pool, an page should be evicted and the new page
      * should be added in its place.
+     * <p>
+     * Hits take no BufferPool-wide lock.  Misses read the page without
+     * holding one either, so misses on different pages load in parallel,
+     * and concurrent misses on the same page share a single read.
      *
      * @param tid the ID of the transaction requesting the page
      * @param pid the ID of the requested page
@@ -78,27 +231,276 @@ public class BufferPool {
     public  Page getPage(TransactionId tid, PageId pid, Permissions perm)
 	throws TransactionAbortedException, DbException {
 	
-		
-	try {	// Added for Lab 4: acquire the lock on the page first
+	acquireLock(tid, pid, perm); // Added for Lab 4: acquire the lock on the page first
+	if (perm == Permissions.READ_WRITE) {
+	    dirtiedBy(tid).add(pid);
+	    List<PageId> op = operationPins.get();
+	    if (op != null) {
+		pinPage(pid);
+		op.add(pid);
+	    }
+	}
+	
+	Page p = pages.get(pid);
+	if (p != null) {
+	    policy.pageAccessed(pid);
+	    hits.incrementAndGet();
+	    return p;
+	}
+	misses.incrementAndGet();
+
+	while (true) {
+	    FutureTask<Page> load = new FutureTask<Page>(new PageLoader(pid, false));
+	    FutureTask<Page> pending = loading.putIfAbsent(pid, load);
+	    if (pending == null) {
+		try {
+		    load.run();
+		} finally {
+		    loading.remove(pid, load);
+		}
+	    } else {
+		load = pending;
+	    }
+	    Page got = awaitLoad(load, pid);
+	    // null only from a prefetch that found no room; read it ourselves
+	    if (got != null)
+		return got;
+	}
+    }
+
+    private Page awaitLoad(FutureTask<Page> load, PageId pid) throws DbException {
+	boolean interrupted = false;
+	try {
+	    while (true) {
+		try {
+		    return load.get();
+		} catch (InterruptedException e) {
+		    interrupted = true;
+		}
+	    }
+	} catch (ExecutionException e) {
+	    Throwable cause = e.getCause();
+	    if (cause instanceof DbException)
+		throw (DbException) cause;
+	    if (cause instanceof RuntimeException)
+		throw (RuntimeException) cause;
+	    if (cause instanceof Error)
+		throw (Error) cause;
+	    throw new DbException("couldn't read page " + pid + ": " + cause);
+	} finally {
+	    if (interrupted)
+		Thread.currentThread().interrupt();
+	}
+    }
+
+    private void acquireLock(TransactionId tid, PageId pid, Permissions perm)
+	throws TransactionAbortedException {
+	try {
 	    lockmgr.acquireLock(tid, pid, perm);
 	} catch (DeadlockException e) { 
 	    throw new TransactionAbortedException(); // caught by callee, who calls transactionComplete()
 	}
-	
-	Page p;
-	synchronized(this) {
-	    p = pages.get(pid);
-	    if(p == null) {
-		if(pages.size() >= numPages) {
-		    evictPage();// added for lab 2
-		    // throw new DbException("Out of buffer pages");
+    }
+
+    /**
+     * Returns true if a sequential scan of the given number of pages should
+     * read through a ScanRing rather than through the pool.
+     */
+    public boolean isLargeScan(int numPages) {
+	return numPages > this.numPages / LARGE_SCAN_FRACTION;
+    }
+
+    /**
+     * Retrieve a page for a sequential scan, with READ_ONLY permission.
+     * A page in the pool is returned as by getPage(), but without telling
+     * the replacement policy, so the scan doesn't make pages look hot.  A
+     * page that is not in the pool is read into the scan's ring instead,
+     * where it replaces the oldest page of the ring, so the pool's pages
+     * are never evicted for it.  A page the scan's read-ahead has staged
+     * in the ring is used instead of reading it again, unless its file
+     * has been written since.  A page the pool has spilled is fetched as
+     * by getPage(), since the ring can only hold older copies of it.
+     *
+     * @param tid the ID of the transaction requesting the page
+     * @param pid the ID of the requested page
+     * @param ring the scan's private frames
+     */
+    public Page getScanPage(TransactionId tid, PageId pid, ScanRing ring)
+	throws TransactionAbortedException, DbException {
+	acquireLock(tid, pid, Permissions.READ_ONLY);
+	ring.dropStagedBefore(pid);
+	Page p = pages.get(pid);
+	if (p != null) {
+	    hits.incrementAndGet();
+	    return p;
+	}
+	// a page our transaction dirtied that has been spilled: the ring and
+	// the read-ahead only have its disk version.  spillPage() adds a page
+	// to spilled before it leaves the pool, so one of the checks sees it.
+	if (spilled.containsKey(pid))
+	    return getPage(tid, pid, Permissions.READ_ONLY);
+	p = ring.find(pid);
+	if (p != null) {
+	    hits.incrementAndGet();
+	    return p;
+	}
+	// any other page that has left the pool has been written, which the
+	// staged copy can tell
+	p = ring.takeStaged(pid);
+	if (p != null) {
+	    misses.incrementAndGet();
+	    ring.add(p);
+	    return p;
+	}
+	// another thread is reading the page into the pool
+	if (loading.containsKey(pid))
+	    return getPage(tid, pid, Permissions.READ_ONLY);
+
+	misses.incrementAndGet();
+	p = Database.getCatalog().getDatabaseFile(pid.getTableId()).readPage(pid);
+	// our lock keeps anyone from changing the page, but it may have
+	// entered the pool while we read it
+	Page cur = pages.get(pid);
+	if (cur != null)
+	    return cur;
+	ring.add(p);
+	return p;
+    }
+
+    /**
+     * The private frames of one sequential scan; see {@link #getScanPage}.
+     * Used by one thread at a time, except that read-ahead threads may
+     * stage pages in it.
+     */
+    public static class ScanRing {
+	private final Page[] frames;
+	private int next = 0;
+	// pages read ahead of the scan
+	private final ConcurrentHashMap<PageId,Staged> staged =
+	    new ConcurrentHashMap<PageId,Staged>();
+
+	private static class Staged {
+	    final Page page;
+	    final HeapFile file;
+	    final long writes;
+
+	    Staged(Page page, HeapFile file, long writes) {
+		this.page = page;
+		this.file = file;
+		this.writes = writes;
+	    }
+	}
+
+	/** Creates a ring of the given number of frames. */
+	public ScanRing(int frames) {
+	    this.frames = new Page[frames];
+	}
+
+	Page find(PageId pid) {
+	    for (Page p : frames) {
+		if (p != null && p.getId().equals(pid))
+		    return p;
+	    }
+	    return null;
+	}
+
+	void add(Page p) {
+	    frames[next] = p;
+	    next = (next + 1) % frames.length;
+	}
+
+	/**
+	 * Stages a page read from file, whose write count was writes before
+	 * the read started.
+	 */
+	void stage(Page p, HeapFile file, long writes) {
+	    staged.put(p.getId(), new Staged(p, file, writes));
+	}
+
+	/**
+	 * Removes and returns the staged copy of a page, or null if there is
+	 * none or its file has been written since it was read.
+	 */
+	Page takeStaged(PageId pid) {
+	    Staged s = staged.remove(pid);
+	    if (s == null || s.file.writeCount() != s.writes)
+		return null;
+	    return s.page;
+	}
+
+	/**
+	 * Drops the staged pages of pid's file that come before pid: the
+	 * scan has gone past them, e.g. because they were in the pool or
+	 * arrived late.
+	 */
+	void dropStagedBefore(PageId pid) {
+	    for (Iterator<PageId> i = staged.keySet().iterator(); i.hasNext(); ) {
+		PageId s = i.next();
+		if (s.getTableId() == pid.getTableId() && s.pageNumber() < pid.pageNumber())
+		    i.remove();
+	    }
+	}
+
+	/** Returns the number of staged pages. */
+	int stagedPages() {
+	    return staged.size();
+	}
+
+	/** Drops every staged page. */
+	void clearStaged() {
+	    staged.clear();
+	}
+    }
+
+    /**
+     * Reads a page that was not in the pool and adds it, evicting another
+     * page if the pool is full.  The read itself happens outside of the
+     * BufferPool's monitor.
+     */
+    private class PageLoader implements Callable<Page> {
+	private final PageId pid;
+	private final boolean prefetch;
+
+	/**
+	 * A prefetch only makes room by evicting a clean page, and gives up,
+	 * returning null, if there is none.
+	 */
+	PageLoader(PageId pid, boolean prefetch) {
+	    this.pid = pid;
+	    this.prefetch = prefetch;
+	}
+
+	public Page call() throws DbException {
+	    // a load that finished just before ours was registered
+	    Page p = pages.get(pid);
+	    if (p != null)
+		return p;
+	    if (spilled.containsKey(pid))
+		return prefetch ? null : unspill(pid);
+
+	    p = Database.getCatalog().getDatabaseFile(pid.getTableId()).readPage(pid);
+	    synchronized(BufferPool.this) {
+		// insertTuple() may have put the page in the pool meanwhile
+		Page cur = pages.get(pid);
+		if (cur != null)
+		    return cur;
+		if (prefetch) {
+		    if (pages.size() >= numPages && !evictCleanPage())
+			return null;
+		} else {
+		    makeRoom(); // added for lab 2
 		}
-		
-		p = Database.getCatalog().getDatabaseFile(pid.getTableId()).readPage(pid);
+		// eviction may have waited, and let the page in
+		cur = pages.get(pid);
+		if (cur != null)
+		    return cur;
+		if (spilled.containsKey(pid))
+		    return prefetch ? null : unspill(pid);
 		pages.put(pid, p);
+		policy.pageAdded(pid);
 	    }
+	    return p;
 	}
-	return p;
     }
 
     /**
@@ -147,25 +549,57 @@ public class BufferPool {
      * done by removing the page from the buffer pool). Note that there is another version 
      * of transactionComplete that takes a single argument; you do not need to add any code 
      * there.
+     * <p>
+     * Commits no longer write pages (NO FORCE): the changes are logged by
+     * {@link #logDirtyPages}, the COMMIT record is written and forced, and
+     * the background writer writes the pages.  Locks are released only
+     * once the commit is durable.  An abort puts back the committed
+     * version of each page it dirtied, which may not be on disk yet, and
+     * writes it over the pages that were written before the abort.
      */
     public void transactionComplete(TransactionId tid, boolean commit)
 	throws IOException {
 	// some code goes here
 	// not necessary for lab1|lab2
 	if(commit){
-		for(Map.Entry<PageId, Page> entry : pages.entrySet()){
-			if(entry.getValue().isDirty() == tid){
-				flushPage(entry.getKey());
-			}
-		}
+		logDirtyPages(tid);
+		Database.getLogFile().logCommit(tid);
 	}
 	else{
-		for(Map.Entry<PageId, Page> entry : pages.entrySet()){
-			if(entry.getValue().isDirty() == tid){
-				pages.remove(entry.getKey());
+		Set<PageId> dirty = dirtied.get(tid);
+		if (dirty != null) {
+			synchronized(this) {
+				for (PageId pid : dirty) {
+					Page p = pages.get(pid);
+					Stolen st = stolen.remove(pid);
+					if (st != null && p != null)
+						pages.put(pid, st.committed);
+					else if (p != null && p.isDirty() == tid)
+						pages.put(pid, p.getBeforeImage());
+					// the committed version of a spilled page is on disk,
+					// unless the page was stolen
+					Spilled sp = spilled.remove(pid);
+					if (sp != null)
+						spill.free(sp.slot);
+					if (st != null)
+						restoreStolen(pid, st);
+				}
+				notifyAll();
+			}
+			// the free space recorded for these pages counted tid's changes
+			for (PageId pid : dirty) {
+				DbFile f;
+				try {
+					f = Database.getCatalog().getDatabaseFile(pid.getTableId());
+				} catch (NoSuchElementException e) {
+					continue; // the table is gone
+				}
+				if (f instanceof HeapFile)
+					((HeapFile) f).pageRolledBack(pid.pageNumber());
 			}
 		}
 	}
+	dirtied.remove(tid);
 	
 	// after dealing with commit vs. abort actions, ask lock manager to release locks
 	lockmgr.releaseAllLocks(tid); // Added for Lab 4
@@ -192,25 +626,30 @@ public class BufferPool {
 	
 	DbFile file = Database.getCatalog().getDatabaseFile(tableId);
 	
-	// let the specific implementation of the file decide which page to add it to
-	ArrayList<Page> dirtypages = file.insertTuple(tid, t);
+	List<PageId> pinned = beginOperation();
+	try {
+	    // let the specific implementation of the file decide which page to add it to
+	    ArrayList<Page> dirtypages = file.insertTuple(tid, t);
 	
-	synchronized(this) {
-	    for (Page p : dirtypages){
-		p.markDirty(true, tid);
+	    synchronized(this) {
+		for (Page p : dirtypages){
+		    markDirty(p, tid);
 		
-		// if page in pool already, done.
-		if(pages.get(p.getId()) != null) {
-		    //replace old page with new one in case insertTuple returns a new copy of the page
-		    pages.put(p.getId(), p);
-		}
-		else {
-		    // put page in pool
-		    if(pages.size() >= numPages)
-			evictPage();
-		    pages.put(p.getId(), p);
+		    // if page in pool already, done.
+		    if(pages.get(p.getId()) != null) {
+			//replace old page with new one in case insertTuple returns a new copy of the page
+			pages.put(p.getId(), p);
+		    }
+		    else {
+			// put page in pool
+			makeRoom();
+			pages.put(p.getId(), p);
+			policy.pageAdded(p.getId());
+		    }
 		}
 	    }
+	} finally {
+	    endOperation(pinned);
 	}
     }
     
@@ -232,14 +671,137 @@ public class BufferPool {
 	// not necessary for lab1
 	
 	DbFile file = Database.getCatalog().getDatabaseFile(t.getRecordId().getPageId().getTableId());
-	ArrayList<Page> dirtypages = file.deleteTuple(tid, t);
+	List<PageId> pinned = beginOperation();
+	try {
+	    ArrayList<Page> dirtypages = file.deleteTuple(tid, t);
 	
-	synchronized(this) {
-	    for (Page p : dirtypages){
-		p.markDirty(true, tid);
+	    synchronized(this) {
+		for (Page p : dirtypages)
+		    markDirty(p, tid);
+	    }
+	} finally {
+	    endOperation(pinned);
+	}
+    }
+
+    /**
+     * Starts pinning the pages this thread fetches READ_WRITE, unless an
+     * enclosing operation already does.
+     *
+     * @return the list of pinned pages to pass to endOperation, or null
+     */
+    private List<PageId> beginOperation() {
+	if (operationPins.get() != null)
+	    return null;
+	List<PageId> pinned = new ArrayList<PageId>();
+	operationPins.set(pinned);
+	return pinned;
+    }
+
+    /** Unpins the pages pinned since the matching beginOperation. */
+    private void endOperation(List<PageId> pinned) {
+	if (pinned == null)
+	    return;
+	operationPins.remove();
+	for (PageId pid : pinned)
+	    unpinPage(pid);
+    }
+
+    /**
+     * Pins a page, so that it is not evicted until it has been unpinned as
+     * many times as it was pinned.  The page need not be in the pool yet.
+     * Callers that keep using a page after fetching it, and may change it,
+     * should pin it first.
+     */
+    public synchronized void pinPage(PageId pid) {
+	Integer n = pins.get(pid);
+	pins.put(pid, n == null ? 1 : n + 1);
+    }
+
+    /** Releases one pin on a page; see {@link #pinPage}. */
+    public synchronized void unpinPage(PageId pid) {
+	Integer n = pins.get(pid);
+	if (n == null)
+	    return;
+	if (n > 1) {
+	    pins.put(pid, n - 1);
+	} else {
+	    pins.remove(pid);
+	    notifyAll();
+	}
+    }
+
+    /**
+     * Turns the spill file on or off.  With it on (the default), eviction
+     * moves a dirty page of a running transaction to a temporary file when
+     * no clean page can be evicted.  With it off, eviction waits for a
+     * clean page and throws DbException if none turns up.
+     */
+    public void setSpilling(boolean on) {
+	spilling = on;
+    }
+
+    /** A page in the spill file, and the transaction that dirtied it. */
+    private static class Spilled {
+	final int slot;
+	final TransactionId tid;
+
+	Spilled(int slot, TransactionId tid) {
+	    this.slot = slot;
+	    this.tid = tid;
+	}
+    }
+
+    /**
+     * Moves a dirty page to the spill file; the caller removes it from the
+     * pool.  The committed version of the page is written to its file
+     * first if it is not there yet, so an abort can simply drop the spilled
+     * copy.
+     */
+    private synchronized void spillPage(PageId pid) throws DbException {
+	Page p = pages.get(pid);
+	try {
+	    if (unwritten.containsKey(pid)) {
+		Database.getLogFile().force();
+		synchronized (diskLock) {
+		    Database.getCatalog().getDatabaseFile(pid.getTableId()).writePage(p.getBeforeImage());
+		    unwritten.remove(pid);
+		}
+		writes.incrementAndGet();
 	    }
+	    if (spill == null)
+		spill = new SpillFile(getPageSize());
+	    int slot = spill.write(p.getBeforeImage().getPageData(), p.getPageData());
+	    spilled.put(pid, new Spilled(slot, p.isDirty()));
+	    spills.incrementAndGet();
+	} catch (IOException e) {
+	    throw new DbException("couldn't spill page " + pid + ": " + e);
 	}
     }
+
+    /**
+     * Brings a spilled page back into the pool, still dirty by the
+     * transaction that changed it, and returns it.
+     */
+    private synchronized Page unspill(PageId pid) throws DbException {
+	makeRoom();
+	Spilled sp = spilled.get(pid);
+	if (sp == null)
+	    return pages.get(pid); // fetched by another thread while we made room
+	HeapPage p;
+	try {
+	    byte[][] images = spill.read(sp.slot);
+	    p = new HeapPage((HeapPageId) pid, images[1], images[0]);
+	} catch (IOException e) {
+	    throw new DbException("couldn't read spilled page " + pid + ": " + e);
+	}
+	p.markDirty(true, sp.tid);
+	spilled.remove(pid);
+	spill.free(sp.slot);
+	pages.put(pid, p);
+	policy.pageAdded(pid);
+	return p;
+    }
     
     /**
      * Flush all dirty pages to disk.
@@ -262,8 +824,15 @@ public class BufferPool {
         cache.
     */
     public synchronized void discardPage(PageId pid) {
-	// some code goes here
-	// not necessary for labs 1--4
+	recLSNs.remove(pid);
+	unwritten.remove(pid);
+	stolen.remove(pid);
+	Spilled sp = spilled.remove(pid);
+	if (sp != null)
+	    spill.free(sp.slot);
+	if (pages.remove(pid) != null)
+	    policy.pageRemoved(pid);
+	notifyAll();
     }
     
     /**
@@ -278,298 +847,1119 @@ public class BufferPool {
 	if (p == null)
 	    return; //not in buffer pool -- doesn't need to be flushed
 	
+	// write ahead: the update must be in the log before the page is on disk
+	TransactionId dirtier = p.isDirty();
+	if (dirtier != null) {
+	    logSteal(dirtier, p);
+	    Database.getLogFile().force();
+	} else if (unwritten.containsKey(pid)) {
+	    Database.getLogFile().force();
+	}
 	DbFile file = Database.getCatalog().getDatabaseFile(pid.getTableId());
-	file.writePage(p);
+	synchronized (diskLock) {
+	    file.writePage(p);
+	    unwritten.remove(pid);
+	}
+	writes.incrementAndGet();
 	p.markDirty(false, null);
+	recLSNs.remove(pid);
+    }
+
+    /** A page written before the transaction that dirtied it finished. */
+    private static class Stolen {
+	// the before image when the page was first written
+	final Page committed;
+	// the image last logged for the page.  The next DELTA for the page is
+	// relative to it rather than to the before image, so redo, which
+	// applies every record in order, ends up with the newest image.
+	Page logged;
+
+	Stolen(Page committed) {
+	    this.committed = committed;
+	    this.logged = committed;
+	}
+    }
+
+    /**
+     * Logs the changes tid has made to a page that is about to be written
+     * before tid commits, relative to the image last logged for the page,
+     * and remembers the page's current image as the last logged one.
+     */
+    private void logSteal(TransactionId tid, Page p) throws IOException {
+	PageId pid = p.getId();
+	Stolen st = stolen.get(pid);
+	if (st == null) {
+	    st = new Stolen(p.getBeforeImage());
+	    stolen.put(pid, st);
+	}
+	Database.getLogFile().logWrite(tid, st.logged, p);
+	st.logged = PageDelta.newPage(p.getClass().getName(), pid, p.getPageData());
+    }
+
+    /**
+     * Writes the committed version of a page an aborting transaction
+     * stole back over its changes.
+     */
+    private void restoreStolen(PageId pid, Stolen st) throws IOException {
+	DbFile file;
+	try {
+	    file = Database.getCatalog().getDatabaseFile(pid.getTableId());
+	} catch (NoSuchElementException e) {
+	    return; // the table is gone
+	}
+	synchronized (diskLock) {
+	    file.writePage(st.committed);
+	    unwritten.remove(pid);
+	}
+	writes.incrementAndGet();
+	recLSNs.remove(pid);
+    }
+
+    /**
+     * Flushes a page if it has been dirty since before the given log
+     * position, i.e., its recLSN is at most lsn.  Used by checkpoints to
+     * write the pages in their dirty-page table one at a time.
+     */
+    public synchronized void flushPageDirtySince(PageId pid, long lsn) throws IOException {
+	Long rec = recLSNs.get(pid);
+	if (rec != null && rec <= lsn)
+	    flushPage(pid);
+    }
+
+    /**
+     * Returns a snapshot of the dirty-page table: every dirty page in the
+     * pool, with its recLSN.  Does not block other transactions.
+     */
+    public Map<PageId,Long> dirtyPageTable() {
+	return new HashMap<PageId,Long>(recLSNs);
+    }
+
+    /**
+     * Logs the changes tid made to each page it dirtied, and hands the
+     * pages to the background writer instead of writing them (NO FORCE).
+     * Called by {@link #transactionComplete} before tid's COMMIT record is
+     * written; once that record is forced, the commit is durable even
+     * though the pages are not on disk, since recovery redoes it from the
+     * log.
+     */
+    synchronized void logDirtyPages(TransactionId tid) throws IOException {
+	Set<PageId> dirty = dirtied.get(tid);
+	if (dirty == null)
+	    return;
+	LogFile log = Database.getLogFile();
+	boolean any = false;
+	for (PageId pid : dirty) {
+	    Page p = pages.get(pid);
+	    if (p == null && spilled.containsKey(pid)) {
+		try {
+		    p = unspill(pid);
+		} catch (DbException e) {
+		    throw new IOException(e.getMessage());
+		}
+	    }
+	    if (p == null)
+		continue;
+	    if (p.isDirty() == tid) {
+		recLSNs.putIfAbsent(pid, log.currentLSN());
+		Stolen st = stolen.remove(pid);
+		log.logWrite(tid, st != null ? st.logged : p.getBeforeImage(), p);
+		// the committed state is the before image for the next writer,
+		// and what the background writer writes; set it before the page
+		// is handed over
+		p.setBeforeImage();
+		p.markDirty(false, null);
+		unwritten.put(pid, commits.incrementAndGet());
+		any = true;
+	    } else if (p.isDirty() == null) {
+		// e.g., written by a checkpoint since tid changed it
+		p.setBeforeImage();
+	    }
+	}
+	for (PageId pid : dirty)
+	    stolen.remove(pid);
+	if (any)
+	    wakeWriter();
+	notifyAll();
+    }
+
+    /**
+     * Writes the committed pages that are not on disk yet, in batches
+     * sorted by page number within each file.  The log is forced first, so
+     * no page reaches disk before the records that describe it.  Pages
+     * being changed by a running transaction are written as of their last
+     * commit.
+     *
+     * @return the number of pages written
+     */
+    int writeCommittedPages() throws IOException {
+	if (unwritten.isEmpty())
+	    return 0;
+	Map<Integer,List<PendingWrite>> byFile = new TreeMap<Integer,List<PendingWrite>>();
+	for (Map.Entry<PageId,Long> e : unwritten.entrySet()) {
+	    Page p = pages.get(e.getKey());
+	    if (p == null)
+		continue;
+	    // read the version before the image, so the image is at least as new
+	    PendingWrite w = new PendingWrite(e.getKey(), e.getValue(), p.getBeforeImage());
+	    List<PendingWrite> l = byFile.get(w.pid.getTableId());
+	    if (l == null) {
+		l = new ArrayList<PendingWrite>();
+		byFile.put(w.pid.getTableId(), l);
+	    }
+	    l.add(w);
+	}
+
+	Database.getLogFile().force();
+	int n = 0;
+	for (Map.Entry<Integer,List<PendingWrite>> e : byFile.entrySet()) {
+	    List<PendingWrite> l = e.getValue();
+	    Collections.sort(l);
+	    DbFile file = Database.getCatalog().getDatabaseFile(e.getKey());
+	    synchronized (diskLock) {
+		// skip pages written meanwhile by an eviction or a checkpoint,
+		// whose image may be newer than ours
+		for (Iterator<PendingWrite> i = l.iterator(); i.hasNext(); ) {
+		    PendingWrite w = i.next();
+		    if (!unwritten.containsKey(w.pid))
+			i.remove();
+		}
+		if (file instanceof HeapFile) {
+		    List<Page> images = new ArrayList<Page>(l.size());
+		    for (PendingWrite w : l)
+			images.add(w.image);
+		    ((HeapFile) file).writePages(images);
+		} else {
+		    for (PendingWrite w : l)
+			file.writePage(w.image);
+		}
+	    }
+	    writes.addAndGet(l.size());
+	    synchronized (this) {
+		for (PendingWrite w : l) {
+		    // a page committed again meanwhile must be written again
+		    if (unwritten.remove(w.pid, w.version)) {
+			Page p = pages.get(w.pid);
+			if (p == null || p.isDirty() == null)
+			    recLSNs.remove(w.pid);
+		    }
+		}
+		notifyAll();
+	    }
+	    n += l.size();
+	}
+	return n;
+    }
+
+    /** A page image waiting to be written by writeCommittedPages(). */
+    private static class PendingWrite implements Comparable<PendingWrite> {
+	final PageId pid;
+	final long version;
+	final Page image;
+
+	PendingWrite(PageId pid, long version, Page image) {
+	    this.pid = pid;
+	    this.version = version;
+	    this.image = image;
+	}
+
+	public int compareTo(PendingWrite o) {
+	    return pid.pageNumber() - o.pid.pageNumber();
+	}
+    }
+
+    /** Asks the background writer to run, starting it if need be. */
+    private void wakeWriter() {
+	synchronized (writerLock) {
+	    if (closed)
+		return;
+	    writerWanted = true;
+	    if (writer == null) {
+		writer = new Thread("BufferPool writer") {
+		    public void run() {
+			writeLoop();
+		    }
+		};
+		writer.setDaemon(true);
+		writer.start();
+	    } else {
+		writerLock.notifyAll();
+	    }
+	}
+    }
+
+    /** Main loop of the background writer; exits when idle for a while. */
+    private void writeLoop() {
+	while (true) {
+	    synchronized (writerLock) {
+		long idleUntil = System.currentTimeMillis() + WRITER_IDLE_MILLIS;
+		try {
+		    while (!writerWanted || closed) {
+			long idle = idleUntil - System.currentTimeMillis();
+			if (idle <= 0 || closed) {
+			    writer = null;
+			    return;
+			}
+			writerLock.wait(idle);
+		    }
+		} catch (InterruptedException e) {
+		    writer = null;
+		    return;
+		}
+		writerWanted = false;
+	    }
+	    try {
+		// let the commits that arrive meanwhile join the batch
+		Thread.sleep(WRITER_DELAY_MILLIS);
+	    } catch (InterruptedException e) {
+		// write what there is
+	    }
+	    try {
+		writeCommittedPages();
+	    } catch (Exception e) {
+		// the pages stay unwritten: the next round, a checkpoint or an
+		// eviction writes them, and reports the error if it persists
+	    }
+	}
+    }
+
+    /**
+     * Stops the background writer and writes every committed page that is
+     * not on disk yet.  Called when this pool is replaced.
+     */
+    void close() throws IOException {
+	stopWriter();
+	writeCommittedPages();
+	release();
+    }
+
+    /**
+     * Stops the background writer without writing anything more, as if
+     * the system had crashed; a write under way is finished.  Only what
+     * is on disk already survives.  Used to test recovery.
+     */
+    void crash() {
+	stopWriter();
+	try {
+	    release();
+	} catch (IOException e) {
+	    // the spill file is gone with the crash either way
+	}
+    }
+
+    private void stopWriter() {
+	Thread w;
+	synchronized (writerLock) {
+	    closed = true;
+	    writerLock.notifyAll();
+	    w = writer;
+	}
+	if (w == null)
+	    return;
+	try {
+	    w.join();
+	} catch (InterruptedException e) {
+	    Thread.currentThread().interrupt();
+	}
+    }
+
+    private synchronized void release() throws IOException {
+	if (spill != null)
+	    spill.close();
+	if (hotPageSaver != null)
+	    hotPageSaver.cancel();
+    }
+
+    /**
+     * Sets the file that saveHotPages() writes and prefetchHotPages()
+     * reads, or none if f is null.
+     */
+    public void setHotPagesFile(File f) {
+	hotPagesFile = f;
+    }
+
+    /**
+     * Saves the ids of the resident pages to the hot-page file, in the
+     * order the replacement policy values them, so that prefetchHotPages()
+     * can load them after a restart.  Only the table id and page number of
+     * each HeapPageId are kept.  The file is replaced atomically.  Does
+     * nothing if there is no hot-page file.
+     */
+    public void saveHotPages() throws IOException {
+	File f = hotPagesFile;
+	if (f == null)
+	    return;
+	List<HeapPageId> hot = new ArrayList<HeapPageId>();
+	for (PageId pid : policy.residentPages()) {
+	    if (pid instanceof HeapPageId)
+		hot.add((HeapPageId) pid);
+	}
+
+	File tmp = new File(f.getPath() + ".tmp");
+	DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)));
+	try {
+	    out.writeInt(hot.size());
+	    for (HeapPageId pid : hot) {
+		out.writeInt(pid.getTableId());
+		out.writeInt(pid.pageNumber());
+	    }
+	} finally {
+	    out.close();
+	}
+	if (!tmp.renameTo(f)) {
+	    f.delete();
+	    if (!tmp.renameTo(f))
+		throw new IOException("can't replace hot-page file " + f);
+	}
+    }
+
+    /**
+     * Saves the hot pages every periodMillis milliseconds on a background
+     * thread, in addition to any explicit saveHotPages(), until the pool
+     * is closed.  A second call replaces the first.
+     */
+    public synchronized void startHotPageSaver(long periodMillis) {
+	if (hotPageSaver != null)
+	    hotPageSaver.cancel();
+	hotPageSaver = new Timer("BufferPool hot-page saver", true);
+	hotPageSaver.schedule(new TimerTask() {
+		public void run() {
+		    try {
+			saveHotPages();
+		    } catch (IOException e) {
+			// the next periodic save tries again
+			Debug.log("couldn't save hot pages: %s", e);
+		    }
+		}
+	    }, periodMillis, periodMillis);
+    }
+
+    /**
+     * Loads the pages listed in the hot-page file into the pool, hottest
+     * first, until the free frames run out.  The chosen pages are sorted by
+     * table and page number and split into runs, which PREFETCH_THREADS
+     * threads read in parallel, each sequentially.  Pages already in the
+     * pool, and pages of tables or beyond files that no longer exist, are
+     * skipped.  The pages are loaded as getPage() would load them, so a
+     * transaction asking for one meanwhile waits for its read.
+     *
+     * @return the number of pages read
+     */
+    public int prefetchHotPages() throws IOException {
+	File f = hotPagesFile;
+	if (f == null || !f.exists())
+	    return 0;
+	List<HeapPageId> hot = new ArrayList<HeapPageId>();
+	DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(f)));
+	try {
+	    int room = numPages - pages.size();
+	    int n = in.readInt();
+	    for (int i = 0; i < n && hot.size() < room; i++) {
+		HeapPageId pid = new HeapPageId(in.readInt(), in.readInt());
+		if (!pages.containsKey(pid))
+		    hot.add(pid);
+	    }
+	} finally {
+	    in.close();
+	}
+	if (hot.isEmpty())
+	    return 0;
+	Collections.sort(hot, new Comparator<HeapPageId>() {
+		public int compare(HeapPageId a, HeapPageId b) {
+		    if (a.getTableId() != b.getTableId())
+			return a.getTableId() < b.getTableId() ? -1 : 1;
+		    return a.pageNumber() - b.pageNumber();
+		}
+	    });
+
+	int threads = Math.min(PREFETCH_THREADS, hot.size());
+	ExecutorService pool = Executors.newFixedThreadPool(threads, new ThreadFactory() {
+		public Thread newThread(Runnable task) {
+		    Thread t = new Thread(task, "BufferPool prefetch");
+		    t.setDaemon(true);
+		    return t;
+		}
+	    });
+	final AtomicInteger read = new AtomicInteger();
+	List<Future<?>> runs = new ArrayList<Future<?>>();
+	try {
+	    for (int t = 0; t < threads; t++) {
+		final List<HeapPageId> run = hot.subList(hot.size() * t / threads,
+							 hot.size() * (t + 1) / threads);
+		runs.add(pool.submit(new Runnable() {
+			public void run() {
+			    for (HeapPageId pid : run) {
+				if (prefetchPage(pid))
+				    read.incrementAndGet();
+			    }
+			}
+		    }));
+	    }
+	    for (Future<?> run : runs) {
+		try {
+		    run.get();
+		} catch (InterruptedException e) {
+		    Thread.currentThread().interrupt();
+		    throw new InterruptedIOException("interrupted while prefetching");
+		} catch (ExecutionException e) {
+		    throw new IOException("couldn't prefetch pages: " + e.getCause());
+		}
+	    }
+	} finally {
+	    pool.shutdownNow();
+	}
+	return read.get();
+    }
+
+    /**
+     * Loads a page into the pool unless it is there or being loaded
+     * already.  No lock is taken, and only a clean page is evicted to
+     * make room for it.
+     *
+     * @return true if the page was read
+     */
+    boolean prefetchPage(PageId pid) {
+	if (pages.containsKey(pid))
+	    return false;
+	FutureTask<Page> load = new FutureTask<Page>(new PageLoader(pid, true));
+	if (loading.putIfAbsent(pid, load) != null)
+	    return false;
+	try {
+	    load.run();
+	} finally {
+	    loading.remove(pid, load);
+	}
+	try {
+	    return load.get() != null;
+	} catch (ExecutionException e) {
+	    // e.g., the table is gone or the file has shrunk
+	    return false;
+	} catch (InterruptedException e) {
+	    Thread.currentThread().interrupt();
+	    return false;
+	}
+    }
+
+    /** Marks a page dirty by tid and enters it in the dirty-page table. */
+    private void markDirty(Page p, TransactionId tid) {
+	p.markDirty(true, tid);
+	dirtiedBy(tid).add(p.getId());
+	recLSNs.putIfAbsent(p.getId(), Database.getLogFile().currentLSN());
     }
     
     /** Write all pages of the specified transaction to disk.
+     * The pages' before images stay the committed versions until the
+     * transaction commits, so an abort still puts those back.
      */
     public synchronized  void flushPages(TransactionId tid) throws IOException {
 	// some code goes here
 	// not necessary for labs 1--4
+	Set<PageId> dirty = dirtied.get(tid);
+	if (dirty == null)
+	    return;
+	ArrayList<Page> flush = new ArrayList<Page>();
+	try {
+	    for (PageId pid : dirty) {
+		Page p = pages.get(pid);
+		if (p == null && spilled.containsKey(pid)) {
+		    // keep the pages already collected from being spilled meanwhile
+		    pinPage(pid);
+		    try {
+			p = unspill(pid);
+		    } catch (DbException e) {
+			unpinPage(pid);
+			throw new IOException(e.getMessage());
+		    }
+		    flush.add(p);
+		} else if (p != null && p.isDirty() == tid) {
+		    pinPage(pid);
+		    flush.add(p);
+		}
+	    }
+	    if (flush.isEmpty())
+		return;
+
+	    // log every page and force the log once before writing any of them
+	    LogFile log = Database.getLogFile();
+	    for (Page p : flush)
+		logSteal(tid, p);
+	    log.force();
+	    for (Page p : flush) {
+		DbFile file = Database.getCatalog().getDatabaseFile(p.getId().getTableId());
+		synchronized (diskLock) {
+		    file.writePage(p);
+		    unwritten.remove(p.getId());
+		}
+		writes.incrementAndGet();
+		p.markDirty(false, null);
+		recLSNs.remove(p.getId());
+	    }
+	} finally {
+	    for (Page p : flush)
+		unpinPage(p.getId());
+	}
+    }
+
+    /**
+     * Returns the set of pages that tid may have dirtied, creating it if
+     * this is the first.
+     */
+    private Set<PageId> dirtiedBy(TransactionId tid) {
+	Set<PageId> dirty = dirtied.get(tid);
+	if (dirty == null) {
+	    Set<PageId> fresh = Collections.newSetFromMap(new ConcurrentHashMap<PageId, Boolean>());
+	    dirty = dirtied.putIfAbsent(tid, fresh);
+	    if (dirty == null)
+		dirty = fresh;
+	}
+	return dirty;
     }
     
+    /** Returns the number of pages the pool may hold. */
+    public int getNumPages() {
+	return numPages;
+    }
+
+    /**
+     * Changes the number of pages the pool may hold while it is in use,
+     * keeping the pages already cached.  Growing takes effect at once.
+     * Shrinking evicts clean and committed pages down to the new size right
+     * away, but leaves pinned pages and pages dirtied by running
+     * transactions alone; if those alone exceed the new size, the pool
+     * shrinks the rest of the way as pages are loaded, by the usual
+     * eviction.
+     *
+     * @param numPages the new maximum number of pages, at least 1
+     * @return the number of pages still over the new size
+     */
+    public synchronized int resize(int numPages) throws IOException {
+	if (numPages < 1)
+	    throw new IllegalArgumentException("a buffer pool needs at least one page");
+	this.numPages = numPages;
+	policy.setCapacity(numPages);
+	while (pages.size() > numPages) {
+	    PageId pid = policy.chooseVictim(cleanPages);
+	    if (pid == null) {
+		pid = policy.chooseVictim(committedPages);
+		if (pid == null)
+		    break;
+		flushPage(pid);
+	    }
+	    pages.remove(pid);
+	    policy.pageRemoved(pid);
+	    evictions.incrementAndGet();
+	}
+	// a larger pool has room for loads waiting in evictPage()
+	notifyAll();
+	return Math.max(0, pages.size() - numPages);
+    }
+
+    /** Returns a snapshot of the size and activity of the pool. */
+    public synchronized Stats getStats() {
+	int dirty = 0;
+	for (Page p : pages.values()) {
+	    if (p.isDirty() != null)
+		dirty++;
+	}
+	return new Stats(numPages, pages.size(), dirty, unwritten.size(), pins.size(),
+			 spilled.size(), hits.get(), misses.get(), evictions.get(),
+			 spills.get(), writes.get());
+    }
+
+    /**
+     * The size and activity of a BufferPool at one point in time; see
+     * {@link BufferPool#getStats}.  Counts of events are totals since the
+     * pool was created.
+     */
+    public static class Stats {
+	/** Pages the pool may hold. */
+	public final int capacity;
+	/** Pages in the pool, which may exceed capacity right after a resize. */
+	public final int resident;
+	/** Resident pages changed by running transactions. */
+	public final int dirty;
+	/** Committed pages not yet written to disk. */
+	public final int unwritten;
+	/** Pinned pages, resident or not. */
+	public final int pinned;
+	/** Pages in the spill file. */
+	public final int spilled;
+	/** Requests for pages that were in the pool. */
+	public final long hits;
+	/** Requests for pages that had to be read. */
+	public final long misses;
+	/** Pages evicted. */
+	public final long evictions;
+	/** Pages moved to the spill file. */
+	public final long spills;
+	/** Pages written to their files. */
+	public final long writes;
+
+	Stats(int capacity, int resident, int dirty, int unwritten, int pinned,
+	      int spilled, long hits, long misses, long evictions, long spills,
+	      long writes) {
+	    this.capacity = capacity;
+	    this.resident = resident;
+	    this.dirty = dirty;
+	    this.unwritten = unwritten;
+	    this.pinned = pinned;
+	    this.spilled = spilled;
+	    this.hits = hits;
+	    this.misses = misses;
+	    this.evictions = evictions;
+	    this.spills = spills;
+	    this.writes = writes;
+	}
+
+	/** Returns the fraction of requests that were hits, or 0 if there were none. */
+	public double hitRatio() {
+	    long requests = hits + misses;
+	    return requests == 0 ? 0 : (double) hits / requests;
+	}
+
+	public String toString() {
+	    return "capacity " + capacity + ", resident " + resident + ", dirty " + dirty
+		+ ", unwritten " + unwritten + ", pinned " + pinned + ", spilled " + spilled
+		+ "; hits " + hits + ", misses " + misses + ", evictions " + evictions
+		+ ", spills " + spills + ", writes " + writes;
+	}
+    }
+
+    /** Evicts pages until there is room for one more. */
+    private synchronized void makeRoom() throws DbException {
+	while (pages.size() >= numPages)
+	    evictPage();
+    }
+
+    /**
+     * Evicts a clean page, if the replacement policy finds one, without
+     * writing or waiting.
+     *
+     * @return true if a page was evicted
+     */
+    private synchronized boolean evictCleanPage() {
+	PageId pid = policy.chooseVictim(cleanPages);
+	if (pid == null)
+	    return false;
+	pages.remove(pid);
+	policy.pageRemoved(pid);
+	evictions.incrementAndGet();
+	return true;
+    }
+
     /**
      * Discards a page from the buffer pool.
-     * Flushes the page to disk to ensure dirty pages are updated on disk.
+     * The victim is chosen by the replacement policy among the clean,
+     * unpinned pages, so nothing has to be written back (NO STEAL).
+     * Failing that, a committed page is written and evicted, and failing
+     * that, a dirty page is moved to the spill file.  If no page qualifies,
+     * waits up to EVICTION_WAIT_MILLIS for one to.
      */
     private synchronized  void evictPage() throws DbException {
-    	// some code goes here
-    	// not necessary for lab1
-    	
-    	// try to evict a random page, focusing first on finding one that is not dirty
-    	// currently does not check for pages with uncommitted xacts, which could impact future labs
-    	Object pids[] = pages.keySet().toArray();
-    	PageId pid = (PageId) pids[random.nextInt(pids.length)];
-    	boolean b = true;
-    	try {
-    	    Page p = pages.get(pid);
-    	    if (p.isDirty() != null) { // this one is dirty, try to find first non-dirty
-    	    	b = false;
-    		for (PageId pg : pages.keySet()) {
-    		    if (pages.get(pg).isDirty() == null) {
-    			    b = true; 
-    				pid = pg;
-    				break;
-    		    }
-    		}
-    	    }
-    	    flushPage(pid);
-    	} catch (IOException e) {
-    	    throw new DbException("could not evict page");
-    	}
-    	if(b){
-    		pages.remove(pid);
-    	}else {
-    		throw new DbException("couln't evict page");
-    	}
-        }
+	long deadline = 0;
+	while (true) {
+	    PageId pid = policy.chooseVictim(cleanPages);
+	    if (pid == null) {
+		// the background writer has fallen behind: write a committed page here
+		pid = policy.chooseVictim(committedPages);
+		if (pid != null) {
+		    try {
+			flushPage(pid);
+		    } catch (IOException e) {
+			throw new DbException("couldn't write page " + pid + " to evict it: " + e);
+		    }
+		    wakeWriter();
+		}
+	    }
+	    if (pid == null && spilling) {
+		pid = policy.chooseVictim(dirtyPages);
+		if (pid != null)
+		    spillPage(pid);
+	    }
+	    if (pid != null) {
+		pages.remove(pid);
+		policy.pageRemoved(pid);
+		evictions.incrementAndGet();
+		return;
+	    }
+
+	    // every page is pinned, or dirty with spilling off: wait for a
+	    // transaction to finish or a page to be unpinned
+	    long now = System.currentTimeMillis();
+	    if (deadline == 0)
+		deadline = now + EVICTION_WAIT_MILLIS;
+	    else if (now >= deadline)
+		throw new DbException("couldn't evict page: all pages in the buffer pool are dirty or pinned");
+	    try {
+		wait(deadline - now);
+	    } catch (InterruptedException e) {
+		Thread.currentThread().interrupt();
+		throw new DbException("interrupted while waiting to evict a page");
+	    }
+	    if (pages.size() < numPages)
+		return;
+	}
+    }
     
     /**
      * Manages locks on PageIds held by TransactionIds.
      * S-locks and X-locks are represented as Permissions.READ_ONLY and Permisions.READ_WRITE, respectively
      *
-     * All the field read/write operations are protected by this
+     * Every locked page has a LockEntry holding the granted locks and a FIFO
+     * queue of the requests waiting for it.  A request that cannot be granted
+     * parks on its own Condition; whenever locks on the page are released,
+     * the queue is granted in order until the head is incompatible with the
+     * remaining holders.  Lock upgrades (S to X by the same transaction) are
+     * queued ahead of all other waiters.
+     *
+     * Deadlocks are found with a waits-for graph: every waiting request keeps
+     * the set of transactions it is blocked by, refreshed whenever its page's
+     * queue or holders change.  When a transaction blocks we search the graph
+     * for a cycle through it, and abort the youngest transaction on the cycle.
+     *
+     * All the lock table state is protected by latch
      * @Threadsafe
      */
     private class LockManager {
-	final int LOCK_WAIT = 10;       // milliseconds
-	ConcurrentHashMap<TransactionId, LinkedList<PageId>> locked;
-	ConcurrentHashMap<PageId, ConcurrentHashMap<TransactionId, Permissions>> pageLocks;
+	final long DEADLOCK_RECHECK = 1000;  // milliseconds between cycle checks while a request is waiting
+
+	private final ReentrantLock latch = new ReentrantLock();
+	private final HashMap<PageId, LockEntry> lockTable;       // granted and waiting locks, per page
+	private final HashMap<TransactionId, HashSet<PageId>> locked; // pages locked by each transaction
+	private final HashMap<TransactionId, HashSet<LockRequest>> waiting; // queued requests of each transaction
+
+	/** A request for a lock that could not be granted right away */
+	private class LockRequest {
+	    final TransactionId tid;
+	    final Permissions perm;
+	    final boolean upgrade;
+	    final Condition ready = latch.newCondition();
+	    final HashSet<TransactionId> blockers = new HashSet<TransactionId>(); // waits-for edges
+	    boolean granted = false;
+	    boolean aborted = false;
+
+	    LockRequest(TransactionId tid, Permissions perm, boolean upgrade) {
+		this.tid = tid;
+		this.perm = perm;
+		this.upgrade = upgrade;
+	    }
+	}
+
+	/** Lock state of a single page */
+	private class LockEntry {
+	    final HashMap<TransactionId, Permissions> holders = new HashMap<TransactionId, Permissions>();
+	    final LinkedList<LockRequest> waiters = new LinkedList<LockRequest>();
+	}
+
 	/**
 	 * Sets up the lock manager to keep track of page-level locks for transactions
-	 * Should initialize state required for the lock table data structure(s)
-	 * 
-	 * LockManager constructor: Your constructor should create whatever data structure(s) you will be using to represent your lock table. The design of this is entirely up to you. 
-	 * You may decide to use multiple data structures, create a helper class, etc. 
-	 * As a design guideline, you should ensure your data structure(s) allow you to answer these questions:
-	   		-Given a transactionId, which pages does it have locked?
-	   		-Given a page Id, which transactions hold a lock on the page?
-	   		Given a page, which Permissions is it locked with?
-	   If you create a helper class for which you will eventually want to check equality of instances, be sure to implement its equals() method.
 	 */
 	private LockManager() {
-	    locked = new ConcurrentHashMap<TransactionId, LinkedList<PageId>>();
-	    pageLocks = new ConcurrentHashMap<PageId, ConcurrentHashMap<TransactionId, Permissions>>();
+	    lockTable = new HashMap<PageId, LockEntry>();
+	    locked = new HashMap<TransactionId, HashSet<PageId>>();
+	    waiting = new HashMap<TransactionId, HashSet<LockRequest>>();
 	}
 	
 	
 	/**
-	 * Tries to acquire a lock on page pid for transaction tid, with permissions perm. 
-	 * If cannot acquire the lock, waits for a timeout period, then tries again. 
+	 * Acquires a lock on page pid for transaction tid, with permissions perm.
+	 * If the lock cannot be granted right away, the request joins the page's
+	 * wait queue and the calling thread sleeps until a release grants it.
 	 * This method does not return until the lock is granted, or an exception is thrown
 	 *
-	 * In Exercise 5, checking for deadlock will be added in this method
-	 * Note that a transaction should throw a DeadlockException in this method to 
-	 * signal that it should be aborted.
-	 *
-	 * @throws DeadlockException after on cycle-based deadlock
+	 * @throws DeadlockException if the transaction was chosen as the victim
+	 *   of a deadlock, or completed while it was waiting
 	 */
-	@SuppressWarnings("unchecked")
 	public boolean acquireLock(TransactionId tid, PageId pid, Permissions perm)
 	   throws DeadlockException {
-		int tries = 0;
-	    while(!lock(tid, pid, perm)) { // keep trying to get the lock
-	    	synchronized(this) {
-	    		// you don't have the lock yet
-	    		// possibly some code here for Exercise 5, deadlock detection
-	    		System.out.println("Tries: " + tries);
-	    		if(tries > 10){
-	    			System.out.println("Abort");
-	    			throw new DeadlockException();
-	    		}
-	    	}
-		
-	    	try {
-	    		// couldn't get lock, wait for some time, then try again
-	    		Thread.sleep(LOCK_WAIT); 
-	    	} 
-	    	catch (InterruptedException e) { // do nothing
-	    	}
-	    	tries++;
+	    latch.lock();
+	    try {
+		LockEntry e = lockTable.get(pid);
+		if (e == null) {
+		    e = new LockEntry();
+		    lockTable.put(pid, e);
+		}
+		Permissions held = e.holders.get(tid);
+		if (held == Permissions.READ_WRITE || held == perm)
+		    return true; // already hold this lock, or a stronger one
+		boolean upgrade = (held != null);
+		// new requests must not overtake the queue; upgrades may
+		if ((upgrade || e.waiters.isEmpty()) && compatible(e, tid, perm)) {
+		    grant(pid, e, tid, perm);
+		    return true;
+		}
+
+		LockRequest req = new LockRequest(tid, perm, upgrade);
+		enqueue(e, req);
+		updateBlockers(e);
+		boolean interrupted = false;
+		try {
+		    boolean check = true;
+		    while (!req.granted) {
+			if (check && resolveDeadlock(tid))
+			    req.aborted = true;
+			if (req.aborted)
+			    throw new DeadlockException();
+			try {
+			    // normally woken by a grant or an abort; the timeout is
+			    // only a safety net that re-runs deadlock detection
+			    check = !req.ready.await(DEADLOCK_RECHECK, TimeUnit.MILLISECONDS);
+			} catch (InterruptedException ie) {
+			    interrupted = true;
+			}
+		    }
+		} finally {
+		    if (!req.granted) {
+			// give up our place in the queue; this may unblock the requests behind us
+			e.waiters.remove(req);
+			forgetRequest(req);
+			grantWaiters(pid, e);
+		    }
+		    if (interrupted)
+			Thread.currentThread().interrupt();
+		}
+		return true;
+	    } finally {
+		latch.unlock();
 	    }
-	    return true;
 	}
 	
 	
 	/**
 	 * Release all locks corresponding to TransactionId tid.
+	 * Requests the transaction still has waiting in a queue are aborted.
 	 * This method is used by BufferPool.transactionComplete()
 	 */
-	public synchronized void releaseAllLocks(TransactionId tid) {
-	   if(this.locked.containsKey(tid)){
-		   LinkedList<PageId> pages = locked.get(tid);
-		   for(PageId p : pages){
-			   ConcurrentHashMap<TransactionId, Permissions> tids = this.pageLocks.get(p);
-			   for(TransactionId t : tids.keySet()){
-				   if(t.equals(tid)){
-					   tids.remove(t);
-					   pageLocks.put(p, tids);
-				   }
-			   }
-		   }
-		   locked.remove(tid);
-	   }
+	public void releaseAllLocks(TransactionId tid) {
+	    latch.lock();
+	    try {
+		HashSet<PageId> pids = locked.remove(tid);
+		if (pids != null) {
+		    for (PageId pid : pids) {
+			LockEntry e = lockTable.get(pid);
+			e.holders.remove(tid);
+			grantWaiters(pid, e);
+		    }
+		}
+		// a thread of this transaction may still be parked on some page
+		HashSet<LockRequest> reqs = waiting.get(tid);
+		if (reqs != null) {
+		    for (LockRequest r : reqs) {
+			r.aborted = true;
+			r.ready.signal();
+		    }
+		}
+	    } finally {
+		latch.unlock();
+	    }
 	}
 	
 	/** Return true if the specified transaction has a lock on the specified page
 	 * Simple method used by Buffer Pool to determine whether the given transaction 
 	 * has any type of lock on the given page.
 	 **/
-	public synchronized boolean holdsLock(TransactionId tid, PageId p) {
-	   if(locked.containsKey(tid)){
-		   LinkedList<PageId> pages = locked.get(tid);
-		   for(PageId pid : pages){
-			   if(p.equals(pid)){
-				   return true;
-			   }
-		   }
-	   }
-		return false;
+	public boolean holdsLock(TransactionId tid, PageId p) {
+	    latch.lock();
+	    try {
+		HashSet<PageId> pids = locked.get(tid);
+		return pids != null && pids.contains(p);
+	    } finally {
+		latch.unlock();
+	    }
 	}
 	
 	/**
-	 * Answers the question: is this transaction "locked out" of acquiring lock on this page with this perm?
-	 * Returns false if this tid/pid/perm lock combo can be achieved (i.e., not locked out), true otherwise.
-	 * 
-	 * Logic:
-	 *
-	 * if perm == READ_ONLY
-	 *  if tid is holding any sort of lock on pid, then the tid can acquire the lock (return false).
-	 *
-	 *  if another tid is holding a READ lock on pid, then the tid can acquire the lock (return false).
-	 *  if another tid is holding a WRITE lock on pid, then tid can not currently 
-	 *  acquire the lock (return true).
-	 *
-	 * else
-	 *   if tid is THE ONLY ONE holding a READ lock on pid, then tid can acquire the lock (return false).
-	 *   if tid is holding a WRITE lock on pid, then the tid already has the lock (return false).
-	 *
-	 *   if another tid is holding any sort of lock on pid, then the tid cannot currenty acquire the lock (return true).
+	 * Releases whatever lock this transaction has on this page, and grants
+	 * the requests at the head of the page's queue that have become compatible.
 	 */
-	private synchronized boolean locked(TransactionId tid, PageId pid, Permissions perm) {
-		if (perm == Permissions.READ_ONLY){
-			//if tid is holding any sort of lock on pid, then the tid can acquire the lock (return false)
-			if(locked.containsKey(tid)){
-				LinkedList<PageId> lockedPages = locked.get(tid);
-				for(PageId page : lockedPages){
-					if(page.equals(pid)){
-						return false;
-					}
-				}
-			}
-			//if another tid is holding a READ lock on pid, then the tid can acquire the lock (return false).
-			if(pageLocks.containsKey(pid)){
-				ConcurrentHashMap<TransactionId, Permissions> tids = pageLocks.get(pid);
-				for(TransactionId t :tids.keySet()){
-					if(!(t.equals(tid)) && tids.get(t).equals(Permissions.READ_ONLY)){
-						return false;
-					}
-					//if another tid is holding a WRITE lock on pid, then tid can not currently 
-					//acquire the lock (return true).
-					if(!(t.equals(tid)) && tids.get(t).equals(Permissions.READ_WRITE)){
-						return true;
-					}
-					}
-				}
+	public void releaseLock(TransactionId tid, PageId pid) {
+	    latch.lock();
+	    try {
+		HashSet<PageId> pids = locked.get(tid);
+		if (pids != null) {
+		    pids.remove(pid);
+		    if (pids.isEmpty())
+			locked.remove(tid);
 		}
-		else{
-			//if tid is THE ONLY ONE holding a READ lock on pid, then tid can acquire the lock (return false).
-			//check lock on pid
-			if(this.pageLocks.containsKey(pid)){
-				ConcurrentHashMap<TransactionId, Permissions> tids = pageLocks.get(pid);
-				if(tids.size()==1 && tids.get(tid) != null && tids.get(tid).equals(Permissions.READ_ONLY)){
-					return false;
-				}
-			}
-			
-			//if tid is holding a WRITE lock on pid, then the tid already has the lock (return false).
-			if(pageLocks.containsKey(pid)){
-				ConcurrentHashMap<TransactionId, Permissions> tids = pageLocks.get(pid);
-				for(TransactionId t : tids.keySet()){
-					if(t.equals(tid) && tids.get(t).equals(Permissions.READ_WRITE)){
-							return false;
-					}
-				}
-			}
-			//if another tid is holding any sort of lock on pid, then the tid cannot currenty acquire the lock (return true).
-			if(pageLocks.containsKey(pid)){
-				ConcurrentHashMap<TransactionId, Permissions> tids = pageLocks.get(pid);
-				for(TransactionId t : tids.keySet()){
-						if((!t.equals(tid)) && (tids.get(t).equals(Permissions.READ_WRITE) || tids.get(t).equals(Permissions.READ_ONLY)) ){
-							return true;
-						}
-				}
-			}
+		LockEntry e = lockTable.get(pid);
+		if (e != null && e.holders.remove(tid) != null)
+		    grantWaiters(pid, e);
+	    } finally {
+		latch.unlock();
+	    }
+	}
+	
+	/**
+	 * Answers the question: can tid hold a perm lock on this page alongside
+	 * the locks currently granted on it?
+	 */
+	private boolean compatible(LockEntry e, TransactionId tid, Permissions perm) {
+	    for (Map.Entry<TransactionId, Permissions> h : e.holders.entrySet()) {
+		if (h.getKey().equals(tid))
+		    continue;
+		if (perm == Permissions.READ_WRITE || h.getValue() == Permissions.READ_WRITE)
+		    return false;
+	    }
+	    return true;
+	}
+	
+	/** Record that tid holds a perm lock on pid */
+	private void grant(PageId pid, LockEntry e, TransactionId tid, Permissions perm) {
+	    e.holders.put(tid, perm);
+	    HashSet<PageId> pids = locked.get(tid);
+	    if (pids == null) {
+		pids = new HashSet<PageId>();
+		locked.put(tid, pids);
+	    }
+	    pids.add(pid);
+	}
+	
+	/** Upgrades go ahead of every ordinary request, behind earlier upgrades */
+	private void enqueue(LockEntry e, LockRequest req) {
+	    HashSet<LockRequest> reqs = waiting.get(req.tid);
+	    if (reqs == null) {
+		reqs = new HashSet<LockRequest>();
+		waiting.put(req.tid, reqs);
+	    }
+	    reqs.add(req);
+	    if (!req.upgrade) {
+		e.waiters.addLast(req);
+		return;
+	    }
+	    ListIterator<LockRequest> it = e.waiters.listIterator();
+	    while (it.hasNext()) {
+		if (!it.next().upgrade) {
+		    it.previous();
+		    break;
 		}
-		return false;
+	    }
+	    it.add(req);
+	}
+	
+	/** Drop a request that has left its queue from the per-transaction index */
+	private void forgetRequest(LockRequest req) {
+	    HashSet<LockRequest> reqs = waiting.get(req.tid);
+	    if (reqs != null) {
+		reqs.remove(req);
+		if (reqs.isEmpty())
+		    waiting.remove(req.tid);
+	    }
 	}
 	
 	/**
-	 * Releases whatever lock this transaction has on this page
-	 * Should update lock table data structure(s)
-	 *
-	 * Note that you do not need to "wake up" another transaction that is waiting for a lock on this page,
-	 * since that transaction will be "sleeping" and will wake up and check if the page is available on its own
-	 * However, if you decide to change the fact that a thread is sleeping in acquireLock(), you would have to wake it up here
+	 * Wake up waiting requests in FIFO order for as long as the head of the
+	 * queue is compatible with the locks held on the page.  Forgets the page
+	 * once nobody holds or waits for it.
 	 */
-	public synchronized void releaseLock(TransactionId tid, PageId pid) {
-	    if(locked.containsKey(tid)){
-	    	LinkedList<PageId> pages = locked.get(tid);
-	    	pages.remove(pid);
-	    	locked.put(tid, pages);
-	    }
-	    if(pageLocks.containsKey(pid)){
-	    	ConcurrentHashMap<TransactionId, Permissions> tids = pageLocks.get(pid);
-	    	for(TransactionId t: tids.keySet()){
-	    		if(t.equals(tid)){
-	    			tids.remove(t);
-	    			pageLocks.put(pid, tids);
-	    		}
-	    	}
+	private void grantWaiters(PageId pid, LockEntry e) {
+	    while (!e.waiters.isEmpty()) {
+		LockRequest r = e.waiters.getFirst();
+		if (!compatible(e, r.tid, r.perm))
+		    break;
+		e.waiters.removeFirst();
+		forgetRequest(r);
+		grant(pid, e, r.tid, r.perm);
+		r.granted = true;
+		r.ready.signal();
 	    }
+	    if (e.holders.isEmpty() && e.waiters.isEmpty())
+		lockTable.remove(pid);
+	    else
+		updateBlockers(e);
 	}
 	
+	/**
+	 * Recompute the waits-for edges of every request queued on a page.  A
+	 * request waits for the holders it conflicts with and for the
+	 * conflicting requests queued ahead of it.
+	 */
+	private void updateBlockers(LockEntry e) {
+	    int pos = 0;
+	    for (LockRequest r : e.waiters) {
+		r.blockers.clear();
+		for (Map.Entry<TransactionId, Permissions> h : e.holders.entrySet()) {
+		    if (!h.getKey().equals(r.tid) && conflicts(r.perm, h.getValue()))
+			r.blockers.add(h.getKey());
+		}
+		Iterator<LockRequest> ahead = e.waiters.iterator();
+		for (int i = 0; i < pos; i++) {
+		    LockRequest w = ahead.next();
+		    if (!w.tid.equals(r.tid) && conflicts(r.perm, w.perm))
+			r.blockers.add(w.tid);
+		}
+		pos++;
+	    }
+	}
+	
+	private boolean conflicts(Permissions a, Permissions b) {
+	    return a == Permissions.READ_WRITE || b == Permissions.READ_WRITE;
+	}
 	
 	/**
-	 * Attempt to lock the given PageId with the given Permissions for this TransactionId
-	 * Should update the lock table data structure(s) if successful
-	 *
-	 * Returns true if the lock attempt was successful, false otherwise
+	 * Search the waits-for graph for a cycle through tid, which is blocked.
+	 * If there is one, the youngest transaction on it is the victim: if that
+	 * is tid we return true and the caller aborts, otherwise the victim's
+	 * waiting requests are aborted and woken.
 	 */
-	private synchronized boolean lock(TransactionId tid, PageId pid, Permissions perm) {
-	    
-	    if(locked(tid, pid, perm)){
-	    	return false; // this transaction cannot get the lock on this page; it is "locked out"
-	    }
-	    // Else, this transaction is able to get the lock, update lock table
-	    else{
-	    	//locked
-	    	if(locked.containsKey(tid)){
-	    		LinkedList<PageId> pages = locked.get(tid);
-	    		pages.add(pid);
-	    		locked.put(tid, pages);
-	    	}
-	    	else{
-	    		LinkedList<PageId> pages = new LinkedList<PageId>();
-	    		pages.add(pid);
-	    		locked.put(tid, pages);
-	    	}
-	    	//pageLocks
-	       	if(pageLocks.containsKey(pid)){
-	    		ConcurrentHashMap<TransactionId, Permissions> tids = pageLocks.get(pid);
-	    		tids.put(tid,perm);
-	    		pageLocks.put(pid, tids);
-	    	}
-	    	else{
-	    		ConcurrentHashMap<TransactionId, Permissions> tids = new ConcurrentHashMap<TransactionId, Permissions>();
-	    		tids.put(tid,perm);
-	    		pageLocks.put(pid, tids);
-	    	}
-	    	return true;
+	private boolean resolveDeadlock(TransactionId tid) {
+	    List<TransactionId> cycle = findCycle(tid);
+	    if (cycle == null)
+		return false;
+	    TransactionId victim = tid;
+	    for (TransactionId t : cycle) {
+		if (t.getId() > victim.getId())
+		    victim = t;
+	    }
+	    if (victim.equals(tid))
+		return true;
+	    for (LockRequest r : waiting.get(victim)) {
+		r.aborted = true;
+		r.ready.signal();
+	    }
+	    return false;
+	}
+	
+	/** Transactions that tid is waiting for, ignoring requests already aborted */
+	private HashSet<TransactionId> waitsFor(TransactionId tid) {
+	    HashSet<TransactionId> out = new HashSet<TransactionId>();
+	    HashSet<LockRequest> reqs = waiting.get(tid);
+	    if (reqs != null) {
+		for (LockRequest r : reqs) {
+		    if (!r.aborted)
+			out.addAll(r.blockers);
+		}
+	    }
+	    return out;
+	}
+	
+	/**
+	 * Depth-first search for a path in the waits-for graph from start back
+	 * to itself.
+	 * @return the transactions on the cycle, or null if there is none
+	 */
+	private List<TransactionId> findCycle(TransactionId start) {
+	    LinkedList<TransactionId> path = new LinkedList<TransactionId>();
+	    LinkedList<Iterator<TransactionId>> edges = new LinkedList<Iterator<TransactionId>>();
+	    HashSet<TransactionId> visited = new HashSet<TransactionId>();
+	    path.addLast(start);
+	    edges.addLast(waitsFor(start).iterator());
+	    visited.add(start);
+	    while (!path.isEmpty()) {
+		Iterator<TransactionId> it = edges.getLast();
+		if (!it.hasNext()) {
+		    path.removeLast();
+		    edges.removeLast();
+		    continue;
+		}
+		TransactionId next = it.next();
+		if (next.equals(start))
+		    return path;
+		if (visited.add(next)) {
+		    path.addLast(next);
+		    edges.addLast(waitsFor(next).iterator());
+		}
 	    }
+	    return null;
 	}
     }	
     
-}
\ No newline at end of file
+}
@@ -52,13 +52,13 @@ public class Catalog {
     public void addTable(DbFile file, String name, String pkeyField) {
         // some code goes here
 		if (name2id.containsKey(name)) {
-			id2table.remove( name2id.get(name) );
+			close(id2table.remove( name2id.get(name) ), file);
 			id2tupledesc.remove( name2id.get(name) );
 			name2id.remove(name);
 		}
 		
         id2tupledesc.put(file.getId(), file.getTupleDesc());
-        id2table.put(file.getId(), file);
+        close(id2table.put(file.getId(), file), file);
         name2id.put(name, file.getId());
         id2name.put(file.getId(), name);
 
@@ -135,6 +135,8 @@ public class Catalog {
     /** Delete all tables from the catalog */
     public void clear() {
         // some code goes here
+        for (DbFile file : id2table.values())
+            close(file, null);
         id2table.clear();
         id2tupledesc.clear();
         name2id.clear();
@@ -142,6 +144,15 @@ public class Catalog {
         pkey.clear();
     }
     
+    /**
+     * Closes a file that has left the catalog, unless it is replaced by
+     * itself.
+     */
+    private static void close(DbFile old, DbFile replacement) {
+        if (old instanceof HeapFile && old != replacement)
+            ((HeapFile) old).close();
+    }
+
     /**
      * Reads the schema from a file and creates the appropriate tables in the database.
      * @param catalogFile
@@ -195,6 +206,16 @@ public class Catalog {
             System.out.println ("Invalid catalog entry : " + line);
             System.exit(0);
         }
+
+        // warm the buffer pool up with the pages that were hot at the last shutdown
+        BufferPool bp = Database.getBufferPool();
+        bp.setHotPagesFile(new File(baseFolder, BufferPool.HOT_PAGES_FILENAME));
+        try {
+            int n = bp.prefetchHotPages();
+            Debug.log("prefetched %d hot pages", n);
+        } catch (IOException e) {
+            Debug.log("couldn't prefetch hot pages, starting cold: %s", e);
+        }
     }
 }
 
@@ -0,0 +1,110 @@
+package simpledb;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * CLOCK (second chance) page replacement.
+ * <p>
+ * Resident pages sit in a circular array of frames, each with a reference
+ * bit.  A hit just sets the page's bit.  To find a victim the clock hand
+ * sweeps the frames, clearing set bits as it passes, and stops at the first
+ * page whose bit is already clear.  Pages enter the pool with their bit
+ * clear, so a page touched once by a sequential scan is evicted before any
+ * page that has been requested twice.
+ * <p>
+ * Hits take no lock, so they never contend with each other.
+ *
+ * @Threadsafe
+ */
+public class ClockReplacementPolicy implements ReplacementPolicy {
+
+    // frameOf and referenced are also read by pageAccessed(), which takes
+    // no lock; all other access is synchronized
+    private final ConcurrentHashMap<PageId, Integer> frameOf = new ConcurrentHashMap<PageId, Integer>();
+    private final LinkedList<Integer> freeFrames = new LinkedList<Integer>();
+    private PageId[] frames = new PageId[0];
+    private volatile boolean[] referenced = new boolean[0];
+    private int hand = 0;
+
+    public synchronized void setCapacity(int numPages) {
+        if (numPages > frames.length)
+            grow(numPages);
+    }
+
+    public synchronized void pageAdded(PageId pid) {
+        if (frameOf.containsKey(pid))
+            return;
+        if (freeFrames.isEmpty())
+            grow(Math.max(1, frames.length * 2));
+        int f = freeFrames.removeFirst();
+        frames[f] = pid;
+        referenced[f] = false;
+        frameOf.put(pid, f);
+    }
+
+    public void pageAccessed(PageId pid) {
+        // races with eviction or growth at worst set the bit of a page that
+        // just took over the frame, or lose the update; both are harmless
+        Integer f = frameOf.get(pid);
+        boolean[] r = referenced;
+        if (f != null && f < r.length)
+            r[f] = true;
+    }
+
+    public synchronized void pageRemoved(PageId pid) {
+        Integer f = frameOf.remove(pid);
+        if (f == null)
+            return;
+        frames[f] = null;
+        referenced[f] = false;
+        freeFrames.addFirst(f);
+    }
+
+    public synchronized PageId chooseVictim(Evictable evictable) {
+        // the first sweep clears every reference bit it passes, so the second
+        // sweep is guaranteed to stop at any evictable page
+        for (int i = 0; i < 2 * frames.length; i++) {
+            int f = hand;
+            hand = (hand + 1) % frames.length;
+            if (frames[f] == null)
+                continue;
+            if (referenced[f]) {
+                referenced[f] = false;
+                continue;
+            }
+            if (evictable.canEvict(frames[f]))
+                return frames[f];
+        }
+        return null;
+    }
+
+    /**
+     * Pages referenced since the hand last passed them come first, then the
+     * others; each group starts just behind the hand, with the pages that
+     * most recently survived a sweep.
+     */
+    public synchronized List<PageId> residentPages() {
+        List<PageId> hot = new ArrayList<PageId>(frameOf.size());
+        List<PageId> cold = new ArrayList<PageId>(frameOf.size());
+        for (int i = 1; i <= frames.length; i++) {
+            int f = (hand - i + frames.length) % frames.length;
+            if (frames[f] == null)
+                continue;
+            if (referenced[f])
+                hot.add(frames[f]);
+            else
+                cold.add(frames[f]);
+        }
+        hot.addAll(cold);
+        return hot;
+    }
+
+    private void grow(int size) {
+        int old = frames.length;
+        frames = Arrays.copyOf(frames, size);
+        referenced = Arrays.copyOf(referenced, size);
+        for (int f = old; f < size; f++)
+            freeFrames.addLast(f);
+    }
+}
@@ -22,7 +22,11 @@ public class Database {
     private final LogFile _logfile;
 
     private Database() {
-        _catalog = new Catalog();
+        this(new Catalog());
+    }
+
+    private Database(Catalog catalog) {
+        _catalog = catalog;
         _bufferpool = new BufferPool(BufferPool.DEFAULT_PAGES);
         LogFile tmp = null;
         try {
@@ -55,6 +59,7 @@ public class Database {
      * return it
      */
     public static BufferPool resetBufferPool(int pages) {
+        closeBufferPool();
         java.lang.reflect.Field bufferPoolF=null;
         try {
             bufferPoolF = Database.class.getDeclaredField("_bufferpool");
@@ -75,7 +80,39 @@ public class Database {
 
     // reset the database, used for unit tests only.
     public static void reset() {
+        closeBufferPool();
+        _instance.get()._catalog.clear();
         _instance.set(new Database());
     }
 
+    /**
+     * Method used for testing -- simulate a crash.  The buffer pool is
+     * thrown away without writing any of its pages, and a new log is
+     * opened on the same file, so only what reached disk survives; the
+     * catalog is kept.  Recover with getLogFile().recover(), as at
+     * startup.
+     */
+    public static void crash() {
+        Database old = _instance.get();
+        old._bufferpool.crash();
+        try {
+            // so the old log's drainer writes nothing after the new log starts
+            if (!old._logfile.recoveryUndecided)
+                old._logfile.force();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+        _instance.set(new Database(old._catalog));
+    }
+
+    // write out the committed pages of the current buffer pool before it
+    // is thrown away
+    private static void closeBufferPool() {
+        try {
+            _instance.get()._bufferpool.close();
+        } catch (Exception e) {
+            e.printStackTrace();
+        }
+    }
+
 }
@@ -0,0 +1,223 @@
+package simpledb;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.*;
+
+/**
+ * FreeSpaceMap records roughly how many free slots each page of a HeapFile
+ * has, so that HeapFile.insertTuple() can go straight to a page with room
+ * instead of fetching and locking pages until it finds one.
+ * <p>
+ * Each page's free space is kept as a class between 0 (full) and CLASSES.
+ * The map lives in a side file next to the data file: a header holding a
+ * four-byte count of the pages it covers and a stamp of the data file,
+ * followed by one byte per page.  A byte is written whenever a page's
+ * class changes, so the file is a hint that may lag behind the data file
+ * (e.g., after an abort); callers check the page itself before relying on
+ * it.  Pages whose class was read from the side file, or that the side
+ * file does not cover, are <em>unverified</em> until they are next
+ * updated.
+ * <p>
+ * The stamp is the length and modification time of the data file when
+ * the map was last closed, and is cleared while the map is being changed.
+ * A side file whose stamp doesn't match the data file, e.g. because the
+ * map wasn't closed or the data file was rewritten by other means, is
+ * ignored and rebuilt as pages are looked at.
+ *
+ * @see HeapFile#insertTuple
+ * @Threadsafe
+ */
+public class FreeSpaceMap {
+
+    /** Number of classes that pages with free space are divided into. */
+    static final int CLASSES = 16;
+
+    // page count, data file length and modification time
+    private static final int HEADER_SIZE = 20;
+
+    private final File dataFile;
+
+    private final File file;
+    private final int slotsPerPage;
+    private FileChannel channel;
+
+    private byte[] classes;
+    private int numPages;
+    // pages whose class is not 0, and pages whose class is known to be right
+    private final BitSet space = new BitSet();
+    private final BitSet verified = new BitSet();
+    // where the next search starts, so inserts keep filling the same page
+    private int hint = 0;
+
+    /**
+     * Returns the side file that holds the free-space map of a data file.
+     */
+    public static File fileFor(File dataFile) {
+        return new File(dataFile.getPath() + ".fsm");
+    }
+
+    /**
+     * Opens the free-space map of a data file, reading the side file if it
+     * exists, covers exactly numPages pages, and its stamp matches the data
+     * file.  Otherwise every page is assumed to have space until it has
+     * been looked at.
+     *
+     * @param dataFile the file whose pages are tracked
+     * @param slotsPerPage the number of tuple slots on each page
+     * @param numPages the number of pages currently in dataFile
+     */
+    public FreeSpaceMap(File dataFile, int slotsPerPage, int numPages) throws IOException {
+        this.dataFile = dataFile;
+        this.file = fileFor(dataFile);
+        this.slotsPerPage = slotsPerPage;
+        this.numPages = numPages;
+        this.classes = new byte[Math.max(numPages, 16)];
+        Arrays.fill(classes, (byte) CLASSES);
+        space.set(0, numPages);
+
+        if (file.exists()) {
+            DataInputStream dis = new DataInputStream(new BufferedInputStream(
+                    new FileInputStream(file)));
+            try {
+                if (file.length() == HEADER_SIZE + numPages && dis.readInt() == numPages
+                    && dis.readLong() == dataFile.length()
+                    && dis.readLong() == dataFile.lastModified()) {
+                    dis.readFully(classes, 0, numPages);
+                    for (int i = 0; i < numPages; i++) {
+                        if (classes[i] == 0)
+                            space.clear(i);
+                    }
+                }
+            } finally {
+                dis.close();
+            }
+        }
+    }
+
+    /**
+     * Returns the class that the given number of free slots falls into.
+     */
+    private int classOf(int freeSlots) {
+        if (freeSlots <= 0)
+            return 0;
+        return 1 + (int) ((long) (freeSlots - 1) * CLASSES / Math.max(1, slotsPerPage));
+    }
+
+    /**
+     * Returns a page that probably has a free slot, or -1 if no page is
+     * thought to have one.
+     */
+    public synchronized int findPage() {
+        int pgno = space.nextSetBit(hint);
+        if (pgno == -1)
+            pgno = space.nextSetBit(0);
+        if (pgno != -1)
+            hint = pgno;
+        return pgno;
+    }
+
+    /**
+     * Returns true if the recorded free space of the page has been set
+     * since the map was opened, rather than read from the side file.
+     */
+    public synchronized boolean isVerified(int pgno) {
+        return verified.get(pgno);
+    }
+
+    /**
+     * Records the number of free slots on a page.  Pages past the end of
+     * the map are added to it.
+     */
+    public synchronized void update(int pgno, int freeSlots) throws IOException {
+        int c = classOf(freeSlots);
+        verified.set(pgno);
+        space.set(pgno, c != 0);
+
+        if (pgno >= numPages) {
+            int old = numPages;
+            if (pgno >= classes.length)
+                classes = Arrays.copyOf(classes, Math.max(pgno + 1, classes.length * 2));
+            Arrays.fill(classes, old, pgno, (byte) CLASSES);
+            space.set(old, pgno);
+            classes[pgno] = (byte) c;
+            numPages = pgno + 1;
+            write(old, numPages);
+            writeCount();
+        } else if (classes[pgno] != c) {
+            classes[pgno] = (byte) c;
+            write(pgno, pgno + 1);
+        }
+    }
+
+    /**
+     * Forgets what is known about the free space of a page, e.g., because
+     * the transaction that changed it aborted.  The page is assumed to
+     * have space, and searched first, until it has been looked at again.
+     */
+    public synchronized void unverify(int pgno) throws IOException {
+        if (pgno >= numPages)
+            return;
+        verified.clear(pgno);
+        space.set(pgno);
+        hint = Math.min(hint, pgno);
+        if (classes[pgno] != CLASSES) {
+            classes[pgno] = (byte) CLASSES;
+            write(pgno, pgno + 1);
+        }
+    }
+
+    /** Writes the classes of pages [from, to) to the side file. */
+    private void write(int from, int to) throws IOException {
+        writeFully(ByteBuffer.wrap(classes, from, to - from), HEADER_SIZE + from);
+    }
+
+    /** Writes the number of pages covered to the side file, and clears the stamp. */
+    private void writeCount() throws IOException {
+        writeHeader(-1, -1);
+    }
+
+    private void writeHeader(long length, long modified) throws IOException {
+        ByteBuffer b = ByteBuffer.allocate(HEADER_SIZE);
+        b.putInt(numPages).putLong(length).putLong(modified).flip();
+        writeFully(b, 0);
+    }
+
+    private void writeFully(ByteBuffer b, long pos) throws IOException {
+        FileChannel ch = channel();
+        while (b.hasRemaining())
+            pos += ch.write(b, pos);
+    }
+
+    /**
+     * Stamps the side file with the data file as it is now, and closes it.
+     * The map is not used after this; it is opened again from the side
+     * file.  The data file must not change between the last update and
+     * the close.
+     */
+    public synchronized void close() throws IOException {
+        try {
+            if (dataFile.exists())
+                writeHeader(dataFile.length(), dataFile.lastModified());
+        } finally {
+            if (channel != null)
+                channel.close();
+            channel = null;
+        }
+    }
+
+    private FileChannel channel() throws IOException {
+        if (channel == null || !channel.isOpen()) {
+            channel = new RandomAccessFile(file, "rw").getChannel();
+            if (channel.size() != HEADER_SIZE + numPages) {
+                // a missing or stale side file: replace it with this map
+                channel.truncate(0);
+                write(0, numPages);
+            }
+            // the side file no longer matches the stamp once it changes
+            writeCount();
+        }
+        return channel;
+    }
+}
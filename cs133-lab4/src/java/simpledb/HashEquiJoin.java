@@ -1,9 +1,18 @@
 package simpledb;
 
+import java.io.IOException;
 import java.util.*;
 
 /**
  * The Join operator implements the relational join operation.
+ * <p>
+ * HashEquiJoin is a hybrid hash join for equality predicates.  The rows of
+ * child1 are loaded into a hash table, and each row of child2 is probed
+ * against it.  If child1 has more than MAP_SIZE rows, both children are
+ * split into PARTITIONS partitions by the hash of their join fields.  The
+ * first partition of child1 stays in memory and is joined while child2 is
+ * read; the rest of both children is written to temporary files, and each
+ * partition is then joined on its own.  Each child is read once.
  */
 public class HashEquiJoin extends Operator {
 
@@ -50,32 +59,176 @@ public class HashEquiJoin extends Operator {
 	return this.child2.getTupleDesc().getFieldName(this.pred.getField2());
     }
     
-    HashMap<Object, ArrayList<Tuple>> map = new HashMap<Object, ArrayList<Tuple>>();
+    // the rows of child1 in memory, keyed on the join field
+    transient JoinHashTable map = null;
+    /** Most rows of child1 held in memory at once. */
     public final static int MAP_SIZE = 20000;
+    /** Number of partitions child1 is split into if it does not fit. */
+    public final static int PARTITIONS = 32;
 
-    private boolean loadMap() throws DbException, TransactionAbortedException {
-        int cnt = 0;
-        map.clear();
-        while (child1.hasNext()) {
-            t1 = child1.next();
-            ArrayList<Tuple> list = map.get(t1.getField(pred.getField1()));
-            if (list == null) {
-                list = new ArrayList<Tuple>();
-                map.put(t1.getField(pred.getField1()), list);
+    // the rows of each partition that are not in map, once child1 has
+    // overflowed MAP_SIZE; null until then.  Partition 0 stays in map
+    // unless it overflows as well.
+    transient private TupleFile[] buildParts = null;
+    transient private TupleFile[] probeParts = null;
+    transient private boolean spilled0 = false;
+    // the partition being joined from disk, or -1 while child2 is read
+    transient private int part = -1;
+    transient private TupleFile.Reader buildIn = null;
+    transient private TupleFile.Reader probeIn = null;
+
+    private static int partition(Field key) {
+        // the high bits, so the rows of a partition still spread over all
+        // of map's slots
+        return ((key.hashCode() * 0x85ebca6b) >>> 16) % PARTITIONS;
+    }
+
+    /**
+     * Reads child1 into map.  If it does not fit, it is partitioned by the
+     * hash of the join field: partition 0 stays in map as long as it fits,
+     * and the others are written to disk.
+     */
+    private void build() throws DbException, TransactionAbortedException {
+        map = JoinHashTable.create(
+            child1.getTupleDesc().getFieldType(pred.getField1()), pred.getField1());
+        try {
+            while (child1.hasNext()) {
+                Tuple t = child1.next();
+                if (buildParts != null) {
+                    addBuildRow(t);
+                } else {
+                    map.add(t);
+                    if (map.size() > MAP_SIZE)
+                        startPartitioning();
+                }
             }
-            list.add(t1);
-            if (cnt++ == MAP_SIZE)
-                return true;
+        } catch (IOException e) {
+            throw new DbException("couldn't write join partition: " + e);
+        }
+    }
+
+    private void startPartitioning() throws IOException {
+        buildParts = new TupleFile[PARTITIONS];
+        probeParts = new TupleFile[PARTITIONS];
+        for (int i = 0; i < PARTITIONS; i++) {
+            buildParts[i] = new TupleFile(child1.getTupleDesc());
+            probeParts[i] = new TupleFile(child2.getTupleDesc());
+        }
+        JoinHashTable rows = map;
+        map = JoinHashTable.create(
+            child1.getTupleDesc().getFieldType(pred.getField1()), pred.getField1());
+        for (int i = 0; i < rows.size(); i++)
+            addBuildRow(rows.row(i));
+    }
+
+    private void addBuildRow(Tuple t) throws IOException {
+        int p = partition(t.getField(pred.getField1()));
+        if (p != 0 || spilled0) {
+            buildParts[p].add(t);
+            return;
+        }
+        map.add(t);
+        if (map.size() > MAP_SIZE) {
+            // partition 0 doesn't fit either: every partition goes to disk
+            for (int i = 0; i < map.size(); i++)
+                buildParts[0].add(map.row(i));
+            map.clear();
+            spilled0 = true;
+        }
+    }
+
+    /**
+     * Returns the next row to probe map with, or null if there are no
+     * more for the rows in map.  While child2 is read, its rows in
+     * partitions on disk are written to disk as well.
+     */
+    private Tuple nextProbe() throws DbException, TransactionAbortedException,
+            IOException {
+        if (part >= 0)
+            return probeIn == null ? null : probeIn.next();
+        while (child2.hasNext()) {
+            Tuple t = child2.next();
+            if (buildParts == null)
+                return t;
+            int p = partition(t.getField(pred.getField2()));
+            if (p == 0 && !spilled0)
+                return t;
+            // nothing in an empty partition of child1 can match
+            if (buildParts[p].size() > 0)
+                probeParts[p].add(t);
+        }
+        return null;
+    }
+
+    /**
+     * Replaces the rows in map with the next rows of child1 to join, which
+     * come from disk.  A partition too big for memory is joined MAP_SIZE
+     * rows at a time, reading its rows of child2 again for each.
+     *
+     * @return false if every row of child1 has been joined
+     */
+    private boolean nextBuild() throws IOException {
+        map.clear();
+        if (buildParts == null)
+            return false;
+        if (buildIn != null && loadChunk()) {
+            probeIn.close();
+            probeIn = probeParts[part].reader();
+            return true;
+        }
+        closeReaders();
+        while (++part < PARTITIONS) {
+            if (buildParts[part].size() == 0 || probeParts[part].size() == 0)
+                continue;
+            buildIn = buildParts[part].reader();
+            loadChunk();
+            probeIn = probeParts[part].reader();
+            return true;
         }
-        return cnt > 0;
+        part = PARTITIONS;
+        return false;
+    }
+
+    private boolean loadChunk() throws IOException {
+        Tuple t;
+        while (map.size() < MAP_SIZE && (t = buildIn.next()) != null)
+            map.add(t);
+        return map.size() > 0;
+    }
+
+    private void closeReaders() throws IOException {
+        if (buildIn != null)
+            buildIn.close();
+        if (probeIn != null)
+            probeIn.close();
+        buildIn = null;
+        probeIn = null;
+    }
 
+    // deletes the partitions, if any, and starts over with child2
+    private void release() {
+        try {
+            closeReaders();
+            if (buildParts != null) {
+                for (int i = 0; i < PARTITIONS; i++) {
+                    buildParts[i].close();
+                    probeParts[i].close();
+                }
+            }
+        } catch (IOException e) {
+            // nothing more to read from them
+        }
+        buildParts = null;
+        probeParts = null;
+        spilled0 = false;
+        part = -1;
     }
 
     public void open() throws DbException, NoSuchElementException,
             TransactionAbortedException {
         child1.open();
         child2.open();
-        loadMap();
+        build();
         super.open();
     }
 
@@ -85,16 +238,21 @@ public class HashEquiJoin extends Operator {
         child1.close();
         this.t1=null;
         this.t2=null;
-        this.listIt=null;
-        this.map.clear();
+        this.match=-1;
+        this.map=null;
+        release();
     }
 
     public void rewind() throws DbException, TransactionAbortedException {
+        release();
         child1.rewind();
         child2.rewind();
+        match = -1;
+        build();
     }
 
-    transient Iterator<Tuple> listIt = null;
+    // the next row of map to join with t2, or -1
+    transient int match = -1;
 
     /**
      * Returns the next tuple generated by the join, or null if there are no
@@ -115,7 +273,8 @@ public class HashEquiJoin extends Operator {
      * @see JoinPredicate#filter
      */
     private Tuple processList() throws TransactionAbortedException, DbException {
-        t1 = listIt.next();
+        t1 = map.row(match);
+        match = map.next(match);
 
         int td1n = t1.getTupleDesc().numFields();
         int td2n = t2.getTupleDesc().numFields();
@@ -131,32 +290,21 @@ public class HashEquiJoin extends Operator {
     }
 
     protected Tuple fetchNext() throws TransactionAbortedException, DbException {
-        if (listIt != null && listIt.hasNext()) {
-            return processList();
-        }
-
-        // loop around child2
-        while (child2.hasNext()) {
-            t2 = child2.next();
-
-            // if match, create a combined tuple and fill it with the values
-            // from both tuples
-            ArrayList<Tuple> l = map.get(t2.getField(pred.getField2()));
-            if (l == null)
-                continue;
-            listIt = l.iterator();
-
-            return processList();
-
-        }
-
-        // child2 is done: advance child1
-        child2.rewind();
-        if (loadMap()) {
-            return fetchNext();
+        try {
+            while (true) {
+                if (match != -1)
+                    return processList();
+                Tuple probe = nextProbe();
+                if (probe != null) {
+                    t2 = probe;
+                    match = map.first(t2.getField(pred.getField2()));
+                } else if (!nextBuild()) {
+                    return null;
+                }
+            }
+        } catch (IOException e) {
+            throw new DbException("couldn't read or write join partition: " + e);
         }
-
-        return null;
     }
 
     @Override
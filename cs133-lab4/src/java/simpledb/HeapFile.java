@@ -1,7 +1,12 @@
 package simpledb;
 
 import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
 import java.util.*;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * HeapFile is an implementation of a DbFile that stores a collection of tuples
@@ -19,7 +24,32 @@ public class HeapFile implements DbFile {
     private final TupleDesc td;
     private final int tableid ;
 
-    private volatile int lastEmptyPage = -1;
+    // opened lazily; see freeSpaceMap()
+    private FreeSpaceMap fsm;
+
+    /** Number of pages the file grows by when it runs out of room. */
+    static final int EXTENT_PAGES = 16;
+
+    // the number of pages in use (high 32 bits) and the number of pages
+    // allocated in the file (low 32 bits), published together; -1 until
+    // first read from the file.  Pages past the used ones are empty.
+    private final AtomicLong pageCounts = new AtomicLong(-1);
+
+    // bumped after every write of pages; see writeCount()
+    private final AtomicLong writes = new AtomicLong();
+
+    // opened lazily, read-only until the first write; see channel().
+    // channel is published before readWrite, and read after it.
+    private volatile FileChannel channel;
+    private volatile boolean readWrite = false;
+
+    /** Number of pages in each memory-mapped segment of the file. */
+    static final int MAP_SEGMENT_PAGES = 16384;
+
+    private final boolean mapped;
+    // segment i maps pages [i*MAP_SEGMENT_PAGES, (i+1)*MAP_SEGMENT_PAGES),
+    // or as many of them as existed when it was mapped; see mappedPage()
+    private volatile MappedByteBuffer[] segments = new MappedByteBuffer[0];
     
     /**
      * Constructs a heap file backed by the specified file.
@@ -29,10 +59,39 @@ public class HeapFile implements DbFile {
      *            file.
      */
     public HeapFile(File f, TupleDesc td) {
+	this(f, td, false);
+    }
+
+    /**
+     * Constructs a heap file backed by the specified file, optionally
+     * reading pages through a memory mapping of the file.
+     * <p>
+     * In mapped mode readPage() builds each HeapPage directly from a slice of
+     * a read-only mapping, so scans do not copy data from the kernel into a
+     * fresh buffer for every page.  This suits large, read-mostly tables.
+     * Writes still go through the file channel and are visible through the
+     * mapping, so a page copies its bytes before it is first changed or its
+     * before image is taken; segments are remapped as the file grows.
+     * 
+     * @param f
+     *            the file that stores the on-disk backing store for this heap
+     *            file.
+     * @param mapped
+     *            whether pages are read through a memory mapping
+     */
+    public HeapFile(File f, TupleDesc td, boolean mapped) {
 	// some code goes here
 	this.f = f;
 	this.tableid = f.getAbsoluteFile().hashCode();
 	this.td = td;
+	this.mapped = mapped;
+    }
+
+    /**
+     * Returns true if pages of this file are read through a memory mapping.
+     */
+    public boolean isMapped() {
+	return mapped;
     }
 
     /**
@@ -69,22 +128,173 @@ public class HeapFile implements DbFile {
 	return td;
     }
 
+    /**
+     * Returns the channel used for all page I/O on this file, opening it on
+     * first use.  Positional reads and writes on a FileChannel may proceed
+     * concurrently, so the channel is shared by every transaction.  A channel
+     * is closed under everyone's feet if a thread is interrupted while using
+     * it, or when the file is reopened for writing; in that case it is simply
+     * reopened.
+     */
+    private FileChannel channel() throws IOException {
+	return channel(false);
+    }
+
+    /**
+     * Returns the channel, reopening the file for writing first if write
+     * is set and it is only open for reading.  The file is created if it
+     * does not exist then.
+     */
+    private FileChannel channel(boolean write) throws IOException {
+	boolean rw = readWrite;
+	FileChannel ch = channel;
+	if (ch == null || !ch.isOpen() || (write && !rw)) {
+	    synchronized (this) {
+		rw = readWrite;
+		ch = channel;
+		if (ch == null || !ch.isOpen() || (write && !rw)) {
+		    FileChannel old = ch;
+		    rw |= write;
+		    ch = new RandomAccessFile(f, rw ? "rw" : "r").getChannel();
+		    channel = ch;
+		    readWrite = rw;
+		    // readers on the old channel retry on the new one
+		    if (old != null)
+			old.close();
+		}
+	    }
+	}
+	return ch;
+    }
+
+    /**
+     * Closes the file and its free-space map.  The catalog calls this when
+     * the table leaves it; using the HeapFile again opens them again.
+     */
+    public synchronized void close() {
+	FileChannel ch = channel;
+	channel = null;
+	readWrite = false;
+	segments = new MappedByteBuffer[0];
+	FreeSpaceMap m = fsm;
+	fsm = null;
+	try {
+	    try {
+		if (ch != null)
+		    ch.close();
+	    } finally {
+		if (m != null)
+		    m.close();
+	    }
+	} catch (IOException e) {
+	    // nothing is lost: every write has gone through the channels
+	}
+    }
+
+    /**
+     * Fills buf from the file starting at offset pos.
+     *
+     * @return the number of bytes read, which is less than requested only
+     *   at end of file
+     */
+    private int readFully(ByteBuffer buf, long pos) throws IOException {
+	if (!f.exists())
+	    return 0;
+	int start = buf.position();
+	while (buf.hasRemaining()) {
+	    int n;
+	    try {
+		n = channel().read(buf, pos + buf.position() - start);
+	    } catch (ClosedChannelException e) {
+		// another thread was interrupted mid-read; retry on a new channel
+		if (Thread.currentThread().isInterrupted())
+		    throw e;
+		continue;
+	    }
+	    if (n < 0)
+		break;
+	}
+	return buf.position() - start;
+    }
+
+    /** Writes all of buf to the file starting at offset pos. */
+    private void writeFully(ByteBuffer buf, long pos) throws IOException {
+	int start = buf.position();
+	while (buf.hasRemaining()) {
+	    try {
+		channel(true).write(buf, pos + buf.position() - start);
+	    } catch (ClosedChannelException e) {
+		if (Thread.currentThread().isInterrupted())
+		    throw e;
+	    }
+	}
+    }
+
+    /**
+     * Returns a buffer holding exactly the given page, sliced from the
+     * mapping of its segment, or null if the page is not (entirely) in the
+     * file.  If the file has grown past the end of the segment's current
+     * mapping, the segment is mapped again.
+     */
+    private ByteBuffer mappedPage(int pgno) throws IOException {
+	int seg = pgno / MAP_SEGMENT_PAGES;
+	int off = (pgno % MAP_SEGMENT_PAGES) * BufferPool.PAGE_SIZE;
+	MappedByteBuffer[] segs = segments;
+	MappedByteBuffer m = seg < segs.length ? segs[seg] : null;
+
+	if (m == null || m.capacity() < off + BufferPool.PAGE_SIZE) {
+	    if (!f.exists())
+		return null;
+	    synchronized (this) {
+		segs = segments;
+		m = seg < segs.length ? segs[seg] : null;
+		if (m == null || m.capacity() < off + BufferPool.PAGE_SIZE) {
+		    // never map past the end of the file: that would extend it
+		    long start = (long) seg * MAP_SEGMENT_PAGES * BufferPool.PAGE_SIZE;
+		    long len = Math.min((long) MAP_SEGMENT_PAGES * BufferPool.PAGE_SIZE,
+					channel().size() - start);
+		    if (len < off + BufferPool.PAGE_SIZE)
+			return null;
+		    m = channel().map(FileChannel.MapMode.READ_ONLY, start, len);
+		    if (seg >= segs.length)
+			segs = Arrays.copyOf(segs, seg + 1);
+		    else
+			segs = segs.clone();
+		    segs[seg] = m;
+		    segments = segs;
+		}
+	    }
+	}
+
+	// a private view, so concurrent readers never share a position
+	ByteBuffer page = m.duplicate();
+	page.position(off);
+	page.limit(off + BufferPool.PAGE_SIZE);
+	return page.slice();
+    }
+
     // see DbFile.java for javadocs
     public Page readPage(PageId pid) {
 	// some code goes here
 	HeapPageId id = (HeapPageId) pid;
-	BufferedInputStream bis = null;
+	if (id.pageNumber() < 0) {
+	    throw new IllegalArgumentException(
+					       "Unable to seek to correct place in heapfile");
+	}
 
 	try {
-	    bis = new BufferedInputStream(new FileInputStream(f));
-	    byte pageBuf[] = new byte[BufferPool.PAGE_SIZE];
-	    if (bis.skip(id.pageNumber() * BufferPool.PAGE_SIZE) != id
-		.pageNumber() * BufferPool.PAGE_SIZE) {
-		throw new IllegalArgumentException(
-						   "Unable to seek to correct place in heapfile");
+	    if (mapped) {
+		ByteBuffer page = mappedPage(id.pageNumber());
+		if (page == null) {
+		    throw new IllegalArgumentException("Read past end of table");
+		}
+		return new HeapPage(id, page);
 	    }
-	    int retval = bis.read(pageBuf, 0, BufferPool.PAGE_SIZE);
-	    if (retval == -1) {
+
+	    byte pageBuf[] = new byte[BufferPool.PAGE_SIZE];
+	    int retval = readFully(ByteBuffer.wrap(pageBuf),
+				   (long) id.pageNumber() * BufferPool.PAGE_SIZE);
+	    if (retval == 0) {
 		throw new IllegalArgumentException("Read past end of table");
 	    }
 	    if (retval < BufferPool.PAGE_SIZE) {
@@ -95,14 +305,6 @@ public class HeapFile implements DbFile {
 	    return p;
 	} catch (IOException e) {
 	    throw new RuntimeException(e);
-	} finally {
-	    // Close the file on success or error
-	    try {
-		if (bis != null)
-		    bis.close();
-	    } catch (IOException ioe) {
-		// Ignore failures closing the file
-	    }
 	}
     }
 
@@ -112,11 +314,138 @@ public class HeapFile implements DbFile {
 	// not necessary for lab1
 
 	HeapPage p = (HeapPage) page;
-	byte[] data = p.getPageData();
-	RandomAccessFile rf = new RandomAccessFile(f, "rw");
-	rf.seek(p.getId().pageNumber() * BufferPool.PAGE_SIZE);
-	rf.write(data);
-	rf.close();
+	int pgno = p.getId().pageNumber();
+	writeFully(p.getPageBuffer(), (long) pgno * BufferPool.PAGE_SIZE);
+	pageWritten(pgno);
+    }
+
+    /**
+     * Writes several pages of this file, which must be sorted by page
+     * number.  Each run of consecutive pages is written with a single
+     * write.
+     */
+    public void writePages(List<Page> sorted) throws IOException {
+	int i = 0;
+	while (i < sorted.size()) {
+	    int first = sorted.get(i).getId().pageNumber();
+	    int j = i + 1;
+	    while (j < sorted.size() && sorted.get(j).getId().pageNumber() == first + (j - i))
+		j++;
+	    if (j - i == 1) {
+		writePage(sorted.get(i));
+	    } else {
+		ByteBuffer run = ByteBuffer.allocate((j - i) * BufferPool.PAGE_SIZE);
+		for (int k = i; k < j; k++)
+		    run.put(((HeapPage) sorted.get(k)).getPageBuffer());
+		run.flip();
+		writeFully(run, (long) first * BufferPool.PAGE_SIZE);
+		pageWritten(first + (j - i) - 1);
+	    }
+	    i = j;
+	}
+    }
+
+    /**
+     * Returns the number of writes of pages to this file so far.  A copy
+     * of a page read while the count was n is current as long as the
+     * count is still n.
+     */
+    long writeCount() {
+	return writes.get();
+    }
+
+    /** Records that page pgno has been written. */
+    private void pageWritten(int pgno) {
+	writes.incrementAndGet();
+	// writing past the pages in use (e.g., to a new file) puts them in use
+	long counts;
+	do {
+	    counts = pageCounts.get();
+	    if (counts == -1 || usedPages(counts) > pgno)
+		break;
+	} while (!pageCounts.compareAndSet(counts,
+		     packCounts(pgno + 1, Math.max(pgno + 1, allocatedPages(counts)))));
+    }
+
+    private static long packCounts(int used, int allocated) {
+	return ((long) used << 32) | allocated;
+    }
+
+    private static int usedPages(long counts) {
+	return (int) (counts >>> 32);
+    }
+
+    private static int allocatedPages(long counts) {
+	return (int) counts;
+    }
+
+    /**
+     * Returns the page counts of this file, reading them from the file the
+     * first time.  The file may end with pages allocated in an extent that
+     * were never used; those are all zeroes and are not counted as in use.
+     */
+    private long pageCounts() {
+	long counts = pageCounts.get();
+	if (counts != -1)
+	    return counts;
+	synchronized (this) {
+	    counts = pageCounts.get();
+	    if (counts != -1)
+		return counts;
+	    try {
+		// a file that doesn't exist yet is empty, and is created on the
+		// first write
+		long size = f.exists() ? channel().size() : 0;
+		int allocated = (int) (size / BufferPool.PAGE_SIZE);
+		int used = allocated;
+		byte[] buf = new byte[BufferPool.PAGE_SIZE];
+		while (used > 1 && allocated - used < EXTENT_PAGES - 1) {
+		    ByteBuffer bb = ByteBuffer.wrap(buf);
+		    if (readFully(bb, (long) (used - 1) * BufferPool.PAGE_SIZE) < buf.length
+			|| !isZero(buf))
+			break;
+		    used--;
+		}
+		counts = packCounts(used, allocated);
+	    } catch (IOException e) {
+		throw new RuntimeException(e);
+	    }
+	    pageCounts.set(counts);
+	    return counts;
+	}
+    }
+
+    private static boolean isZero(byte[] buf) {
+	for (int i = 0; i < buf.length; i++) {
+	    if (buf[i] != 0)
+		return false;
+	}
+	return true;
+    }
+
+    /**
+     * Puts the next empty page in use and returns its number.  If every
+     * allocated page is in use, first grows the file by EXTENT_PAGES pages
+     * with a single write.
+     */
+    private synchronized int allocatePage() throws IOException {
+	long counts = pageCounts();
+	int used = usedPages(counts);
+	int allocated = allocatedPages(counts);
+	if (used == allocated) {
+	    ByteBuffer extent = ByteBuffer.allocate(EXTENT_PAGES * BufferPool.PAGE_SIZE);
+	    writeFully(extent, (long) allocated * BufferPool.PAGE_SIZE);
+	    allocated += EXTENT_PAGES;
+	}
+	// writePage() may have raced ahead of us; it only ever moves counts up
+	while (!pageCounts.compareAndSet(counts, packCounts(used + 1, allocated))) {
+	    counts = pageCounts.get();
+	    used = usedPages(counts);
+	    allocated = Math.max(allocated, allocatedPages(counts));
+	    if (used >= allocated)
+		return allocatePage();
+	}
+	return used;
     }
 
     /**
@@ -124,7 +453,30 @@ public class HeapFile implements DbFile {
      */
     public int numPages() {
 	// some code goes here
-	return (int) (f.length() / BufferPool.PAGE_SIZE);
+	return usedPages(pageCounts());
+    }
+
+    /**
+     * Returns the free-space map of this file, opening it on first use.
+     */
+    private synchronized FreeSpaceMap freeSpaceMap() throws IOException {
+	if (fsm == null)
+	    fsm = new FreeSpaceMap(f, HeapPage.getNumTuples(td), numPages());
+	return fsm;
+    }
+
+    /**
+     * Called when a transaction that changed page pgno aborts.  The free
+     * space recorded for the page may count the changes that were thrown
+     * away, so the page is looked at again before an insert relies on it.
+     */
+    void pageRolledBack(int pgno) throws IOException {
+	FreeSpaceMap m;
+	synchronized (this) {
+	    m = fsm;
+	}
+	if (m != null)
+	    m.unverify(pgno);
     }
 
     // see DbFile.java for javadocs
@@ -134,48 +486,56 @@ public class HeapFile implements DbFile {
        
 	// not necessary for lab1
 	ArrayList<Page> dirtypages = new ArrayList<Page>();
+	BufferPool bp = Database.getBufferPool();
+	FreeSpaceMap fsm = freeSpaceMap();
+
+	// try the pages that the free-space map thinks have a free slot
+	int pgno;
+	while ((pgno = fsm.findPage()) != -1) {
+	    if (pgno >= numPages()) {
+		fsm.update(pgno, 0);
+		continue;
+	    }
+	    HeapPageId pid = new HeapPageId(tableid, pgno);
+	    boolean held = bp.holdsLock(tid, pid);
+
+	    // a hint from a previous run may be stale: look before write-locking
+	    if (!fsm.isVerified(pgno)) {
+		HeapPage p = (HeapPage) bp.getPage(tid, pid, Permissions.READ_ONLY);
+		int free = p.getNumEmptySlots();
+		fsm.update(pgno, free);
+		if (free == 0) {
+		    if (!held)
+			bp.releasePage(tid, pid);
+		    continue;
+		}
+	    }
 
-	// find the first page with a free slot in it
-	int i = 0;
-	if (lastEmptyPage != -1)
-	    i = lastEmptyPage;
-
-	for (; i < numPages(); i++) {
-	    HeapPageId pid = new HeapPageId(tableid, i);
-
-	    HeapPage p = (HeapPage) Database.getBufferPool().getPage(tid, pid,
-								     Permissions.READ_WRITE);
-
-	    // no empty slots
+	    HeapPage p = (HeapPage) bp.getPage(tid, pid, Permissions.READ_WRITE);
 	    if (p.getNumEmptySlots() == 0) {
-		if (lastEmptyPage != -1) {
-		    lastEmptyPage = -1;
-		    break;
-		}
+		// filled up by someone else since the map was updated
+		fsm.update(pgno, 0);
+		if (!held)
+		    bp.releasePage(tid, pid);
 		continue;
 	    }
 
 	    // found a slot
 	    p.insertTuple(t);
-	    lastEmptyPage = p.getId().pageNumber();
+	    fsm.update(pgno, p.getNumEmptySlots());
 	    dirtypages.add(p);
 	    return dirtypages;
 	}
+
 	// never found a slot, have to get to create a new page in this file
-	synchronized (this) {
-	    BufferedOutputStream bw = new BufferedOutputStream(
-							       new FileOutputStream(f, true));
-	    byte[] emptyData = HeapPage.createEmptyPageData();
-	    bw.write(emptyData);
-	    bw.close();
-	}
+	pgno = allocatePage();
+	fsm.update(pgno, HeapPage.getNumTuples(td));
 
 	// now let's try to get our freshly created page via the buffer pool
-	HeapPage p = (HeapPage) Database.getBufferPool()
-	    .getPage(tid, new HeapPageId(tableid, numPages() - 1),
-		     Permissions.READ_WRITE);
+	HeapPage p = (HeapPage) bp.getPage(tid, new HeapPageId(tableid, pgno),
+					   Permissions.READ_WRITE);
 	p.insertTuple(t);
-	lastEmptyPage = p.getId().pageNumber();
+	fsm.update(pgno, p.getNumEmptySlots());
 	dirtypages.add(p);
 	return dirtypages;
     }
@@ -191,6 +551,11 @@ public class HeapFile implements DbFile {
 								 new HeapPageId(tableid, t.getRecordId().getPageId()
 										.pageNumber()), Permissions.READ_WRITE);
 	p.deleteTuple(t);
+	try {
+	    freeSpaceMap().update(p.getId().pageNumber(), p.getNumEmptySlots());
+	} catch (IOException e) {
+	    throw new DbException("couldn't update free-space map: " + e);
+	}
 	ArrayList<Page> dirtypages = new ArrayList<Page>();
 	dirtypages.add(p);
 	return dirtypages;
@@ -203,69 +568,3 @@ public class HeapFile implements DbFile {
     }
 
 }
-
-class HeapFileIterator implements DbFileIterator {
-
-    private Tuple next = null;
-    Iterator<Tuple> it = null;
-    int curpgno = 0;
-
-    TransactionId tid;
-    HeapFile hf;
-
-    public HeapFileIterator(HeapFile hf, TransactionId tid) {
-	this.hf = hf;
-	this.tid = tid;
-    }
-
-    public void open() throws DbException, TransactionAbortedException {
-	curpgno = -1;
-    }
-
-    public boolean hasNext() throws DbException, TransactionAbortedException {
-	if (next == null) next = readNext();
-	return next != null;
-    }
-
-    public Tuple next() throws DbException, TransactionAbortedException,
-			       NoSuchElementException {
-	if (next == null) {
-	    next = readNext();
-	    if (next == null) throw new NoSuchElementException();
-	}
-
-	Tuple result = next;
-	next = null;
-	return result;
-    }
-
-    Tuple readNext() throws TransactionAbortedException, DbException {
-	if (it != null && !it.hasNext())
-	    it = null;
-
-	while (it == null && curpgno < hf.numPages() - 1) {
-	    curpgno++;
-	    HeapPageId curpid = new HeapPageId(hf.getId(), curpgno);
-	    HeapPage curp = (HeapPage) Database.getBufferPool().getPage(tid,
-									curpid, Permissions.READ_ONLY);
-	    it = curp.iterator();
-	    if (!it.hasNext())
-		it = null;
-	}
-
-	if (it == null)
-	    return null;
-	return it.next();
-    }
-
-    public void rewind() throws DbException, TransactionAbortedException {
-	close();
-	open();
-    }
-
-    public void close() {
-	next = null;
-	it = null;
-	curpgno = Integer.MAX_VALUE;
-    }
-}
@@ -0,0 +1,108 @@
+package simpledb;
+
+import java.util.*;
+
+/**
+ * HeapFileIterator iterates over the tuples of a HeapFile, a page at a
+ * time, fetching each page through the buffer pool.
+ */
+class HeapFileIterator implements DbFileIterator {
+
+    private Tuple next = null;
+    Iterator<Tuple> it = null;
+    int curpgno = 0;
+
+    TransactionId tid;
+    HeapFile hf;
+    // pages outside the buffer pool are read into this, if set
+    BufferPool.ScanRing ring = null;
+
+    /** Pages fetched in order before the scan starts reading ahead. */
+    static final int READ_AHEAD_AFTER = 2;
+    // null until the scan has fetched READ_AHEAD_AFTER pages in order
+    ReadAhead readAhead = null;
+    int inOrder = 0;
+
+    public HeapFileIterator(HeapFile hf, TransactionId tid) {
+	this.hf = hf;
+	this.tid = tid;
+    }
+
+    /**
+     * Read pages that are not in the buffer pool into a private ring of
+     * frames rather than into the pool, or stop doing so.
+     *
+     * @see BufferPool#getScanPage
+     */
+    void setScanRing(boolean on) {
+	stopReadAhead();
+	ring = on ? new BufferPool.ScanRing(BufferPool.SCAN_RING_PAGES) : null;
+    }
+
+    public void open() throws DbException, TransactionAbortedException {
+	curpgno = -1;
+    }
+
+    public boolean hasNext() throws DbException, TransactionAbortedException {
+	if (next == null) next = readNext();
+	return next != null;
+    }
+
+    public Tuple next() throws DbException, TransactionAbortedException,
+			       NoSuchElementException {
+	if (next == null) {
+	    next = readNext();
+	    if (next == null) throw new NoSuchElementException();
+	}
+
+	Tuple result = next;
+	next = null;
+	return result;
+    }
+
+    Tuple readNext() throws TransactionAbortedException, DbException {
+	if (it != null && !it.hasNext())
+	    it = null;
+
+	while (it == null && curpgno < hf.numPages() - 1) {
+	    curpgno++;
+	    if (readAhead == null && ++inOrder >= READ_AHEAD_AFTER)
+		readAhead = ReadAhead.create(hf, ring);
+	    if (readAhead != null)
+		readAhead.advance(curpgno);
+	    HeapPageId curpid = new HeapPageId(hf.getId(), curpgno);
+	    HeapPage curp;
+	    if (ring != null)
+		curp = (HeapPage) Database.getBufferPool().getScanPage(tid, curpid, ring);
+	    else
+		curp = (HeapPage) Database.getBufferPool().getPage(tid,
+								   curpid, Permissions.READ_ONLY);
+	    it = curp.iterator();
+	    if (!it.hasNext())
+		it = null;
+	}
+
+	if (it == null)
+	    return null;
+	return it.next();
+    }
+
+    public void rewind() throws DbException, TransactionAbortedException {
+	close();
+	open();
+    }
+
+    public void close() {
+	next = null;
+	it = null;
+	curpgno = Integer.MAX_VALUE;
+	stopReadAhead();
+    }
+
+    private void stopReadAhead() {
+	if (readAhead != null)
+	    readAhead.close();
+	readAhead = null;
+	inOrder = 0;
+    }
+}
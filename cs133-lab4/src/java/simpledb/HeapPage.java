@@ -2,6 +2,7 @@ package simpledb;
 
 import java.util.*;
 import java.io.*;
+import java.nio.ByteBuffer;
 
 /**
  * Each instance of HeapPage stores data for one page of HeapFiles and 
@@ -17,12 +18,29 @@ public class HeapPage implements Page {
     
     final HeapPageId pid;
     final TupleDesc td;
-    final byte header[];
-    final Tuple tuples[];
     final int numSlots;
+    final int headerSize;
+
+    // the bytes of the page, laid out as described at the constructor, with
+    // position 0 at the start of the page.  Until the page is first modified
+    // this is the buffer it was created from (possibly a slice of a mapped
+    // file), which is never written; see ensureWritable()
+    private ByteBuffer data;
+    private boolean writable = false;
+    // data is a direct buffer, i.e. a slice of a mapped file, which changes
+    // whenever the page is written to the file.  Such bytes are copied
+    // before they are kept as a before image.
+    private final boolean shared;
+
+    // the Tuple handed out for each slot so far; created on demand and
+    // decoded lazily from data
+    final Tuple tuples[];
 
-    byte[] oldData;
-    private final Byte oldDataLock=new Byte((byte)0);
+    // the before image, once the page has been modified since it was last
+    // set.  While the page is unmodified data itself serves as the before
+    // image, so pages that are only read never copy their bytes.
+    private ByteBuffer oldData;
+    private final Object oldDataLock = new Object();
 
     /**
      * Create a HeapPage from a set of bytes of data read from disk.
@@ -41,27 +59,42 @@ public class HeapPage implements Page {
      * @see BufferPool#getPageSize()
      */
     public HeapPage(HeapPageId id, byte[] data) throws IOException {
+        this(id, ByteBuffer.wrap(data));
+    }
+
+    /**
+     * Create a HeapPage from the bytes starting at the position of data,
+     * which are laid out as described in {@link #HeapPage(HeapPageId, byte[])}.
+     * The buffer may be a slice of a memory-mapped file; it is not copied,
+     * and the page never writes to it.  Tuples are decoded only when they
+     * are read.  The bytes of a direct buffer are copied before the page is
+     * first modified or its before image is taken, since writes to the
+     * file show through the mapping.
+     */
+    public HeapPage(HeapPageId id, ByteBuffer data) throws IOException {
         this.pid = id;
         this.td = Database.getCatalog().getTupleDesc(id.getTableId());
         this.numSlots = getNumTuples();
-        DataInputStream dis = new DataInputStream(new ByteArrayInputStream(data));
-
-        // allocate and read the header slots of this page
-        header = new byte[getHeaderSize()];
-        for (int i=0; i<header.length; i++)
-            header[i] = dis.readByte();
-        
-        tuples = new Tuple[numSlots];
-        try{
-            // allocate and read the actual records of this page
-            for (int i=0; i<tuples.length; i++)
-                tuples[i] = readNextTuple(dis,i);
-        }catch(NoSuchElementException e){
-            e.printStackTrace();
-        }
-        dis.close();
+        this.headerSize = getHeaderSize();
+
+        if (data.remaining() < BufferPool.getPageSize())
+            throw new EOFException("page data is too short");
+        ByteBuffer buf = data.slice();
+        buf.limit(BufferPool.getPageSize());
+        this.data = buf;
+        this.shared = buf.isDirect();
+        this.tuples = new Tuple[numSlots];
+    }
 
-        setBeforeImage();
+    /**
+     * Create a HeapPage that has been modified since its before image was
+     * set, from both sets of bytes.  Used to bring back a page the
+     * BufferPool spilled.
+     */
+    HeapPage(HeapPageId id, byte[] data, byte[] before) throws IOException {
+        this(id, ByteBuffer.wrap(data));
+        this.oldData = ByteBuffer.wrap(before);
+        this.writable = true;
     }
 
     /** Retrieve the number of tuples on this page.
@@ -69,10 +102,16 @@ public class HeapPage implements Page {
     */
     private int getNumTuples() {        
         // some code goes here
+	return getNumTuples(td);
+    }
+
+    /** Retrieve the number of tuple slots on a page of tuples with the
+        given TupleDesc.
+    */
+    static int getNumTuples(TupleDesc td) {
 	int bitsPerTupleIncludingHeader = td.getSize() * 8 + 1;
 	int tuplesPerPage = (BufferPool.PAGE_SIZE*8) / bitsPerTupleIncludingHeader; //round down
 	return tuplesPerPage;
-
     }
 
     /**
@@ -94,12 +133,14 @@ public class HeapPage implements Page {
         -- used by recovery */
     public HeapPage getBeforeImage(){
         try {
-            byte[] oldDataRef = null;
+            ByteBuffer oldDataRef = null;
             synchronized(oldDataLock)
             {
-                oldDataRef = oldData;
+                oldDataRef = writable ? oldData : data;
             }
-            return new HeapPage(pid,oldDataRef);
+            if (!writable && shared)
+                return new HeapPage(pid, copy(oldDataRef));
+            return new HeapPage(pid,oldDataRef.duplicate());
         } catch (IOException e) {
             e.printStackTrace();
             //should never happen -- we parsed it OK before!
@@ -109,9 +150,12 @@ public class HeapPage implements Page {
     }
     
     public void setBeforeImage() {
+        // the current bytes become the before image and are never written
+        // again; the next modification copies them (see ensureWritable)
         synchronized(oldDataLock)
         {
-        oldData = getPageData().clone();
+        oldData = null;
+        writable = false;
         }
     }
 
@@ -124,37 +168,52 @@ public class HeapPage implements Page {
     }
 
     /**
-     * Suck up tuples from the source file.
+     * Returns the offset in the page of the tuple in the given slot.
      */
-    private Tuple readNextTuple(DataInputStream dis, int slotId) throws NoSuchElementException {
-        // if associated bit is not set, read forward to the next tuple, and
-        // return null.
-        if (!isSlotUsed(slotId)) {
-            for (int i=0; i<td.getSize(); i++) {
-                try {
-                    dis.readByte();
-                } catch (IOException e) {
-                    throw new NoSuchElementException("error reading empty tuple");
-                }
-            }
-            return null;
-        }
+    private int slotOffset(int slotId) {
+        return headerSize + slotId * td.getSize();
+    }
 
-        // read fields in the tuple
-        Tuple t = new Tuple(td);
-        RecordId rid = new RecordId(pid, slotId);
-        t.setRecordId(rid);
-        try {
-            for (int j=0; j<td.numFields(); j++) {
-                Field f = td.getFieldType(j).parse(dis);
-                t.setField(j, f);
+    /**
+     * Make data a private, writable copy of the page before its first
+     * modification since the before image was set, and keep the old bytes
+     * as the before image.  Tuples already handed out keep reading them,
+     * unless they are in a mapped file: those bytes are copied for the
+     * before image, and the tuples decoded, so that nothing still depends
+     * on the mapping once the page is changed and written.
+     */
+    private void ensureWritable() {
+        synchronized(oldDataLock)
+        {
+        if (writable)
+            return;
+        if (shared) {
+            oldData = ByteBuffer.wrap(copy(data));
+            for (Tuple t : tuples) {
+                if (t != null)
+                    t.materialize();
             }
-        } catch (java.text.ParseException e) {
-            e.printStackTrace();
-            throw new NoSuchElementException("parsing error!");
+        } else {
+            oldData = data;
         }
+        data = ByteBuffer.wrap(copy(data));
+        writable = true;
+        }
+    }
+
+    /** Returns a copy of the bytes of a page held in buf. */
+    private static byte[] copy(ByteBuffer buf) {
+        byte[] copy = new byte[BufferPool.getPageSize()];
+        buf.duplicate().get(copy);
+        return copy;
+    }
 
-        return t;
+    /**
+     * Returns a read-only view of the bytes of this page, positioned at the
+     * start of the page.  Used to write the page to disk without copying it.
+     */
+    ByteBuffer getPageBuffer() {
+        return data.asReadOnlyBuffer();
     }
 
     /**
@@ -169,64 +228,9 @@ public class HeapPage implements Page {
      * @return A byte array correspond to the bytes of this page.
      */
     public byte[] getPageData() {
-        int len = BufferPool.getPageSize();
-        ByteArrayOutputStream baos = new ByteArrayOutputStream(len);
-        DataOutputStream dos = new DataOutputStream(baos);
-
-        // create the header of the page
-        for (int i=0; i<header.length; i++) {
-            try {
-                dos.writeByte(header[i]);
-            } catch (IOException e) {
-                // this really shouldn't happen
-                e.printStackTrace();
-            }
-        }
-
-        // create the tuples
-        for (int i=0; i<tuples.length; i++) {
-
-            // empty slot
-            if (!isSlotUsed(i)) {
-                for (int j=0; j<td.getSize(); j++) {
-                    try {
-                        dos.writeByte(0);
-                    } catch (IOException e) {
-                        e.printStackTrace();
-                    }
-
-                }
-                continue;
-            }
-
-            // non-empty slot
-            for (int j=0; j<td.numFields(); j++) {
-                Field f = tuples[i].getField(j);
-                try {
-                    f.serialize(dos);
-                
-                } catch (IOException e) {
-                    e.printStackTrace();
-                }
-            }
-        }
-
-        // padding
-        int zerolen = BufferPool.getPageSize() - (header.length + td.getSize() * tuples.length); //- numSlots * td.getSize();
-        byte[] zeroes = new byte[zerolen];
-        try {
-            dos.write(zeroes, 0, zerolen);
-        } catch (IOException e) {
-            e.printStackTrace();
-        }
-
-        try {
-            dos.flush();
-        } catch (IOException e) {
-            e.printStackTrace();
-        }
-
-        return baos.toByteArray();
+        byte[] out = new byte[BufferPool.getPageSize()];
+        data.duplicate().get(out);
+        return out;
     }
 
     /**
@@ -286,10 +290,30 @@ public class HeapPage implements Page {
 	if (goodSlot == -1)
 	    throw new DbException("called addTuple on page with no empty slots.");
 
+	// serialize t into the slot; a tuple previously handed out for this
+	// slot may still be reading the old bytes, so detach it first
+	ByteArrayOutputStream baos = new ByteArrayOutputStream(td.getSize());
+	DataOutputStream dos = new DataOutputStream(baos);
+	try {
+	    for (int j=0; j<td.numFields(); j++)
+		t.getField(j).serialize(dos);
+	    dos.flush();
+	} catch (IOException e) {
+	    // this really shouldn't happen
+	    throw new DbException("couldn't serialize tuple: " + e);
+	}
+	if (tuples[goodSlot] != null) {
+	    tuples[goodSlot].materialize();
+	    tuples[goodSlot] = null;
+	}
+	ensureWritable();
+	ByteBuffer slot = data.duplicate();
+	slot.position(slotOffset(goodSlot));
+	slot.put(baos.toByteArray());
+
 	markSlotUsed(goodSlot, true);
 	RecordId rid = new RecordId(pid, goodSlot);
 	t.setRecordId(rid);
-	tuples[goodSlot] = t;
     }
 
     /**
@@ -321,11 +345,10 @@ public class HeapPage implements Page {
      */
     public int getNumEmptySlots() {
         // some code goes here
-	int cnt = 0;
-	for(int i=0; i<numSlots; i++)
-	    if(!isSlotUsed(i))
-		cnt++;
-	return cnt;
+	int used = 0;
+	for (int i=0; i<headerSize; i++)
+	    used += Integer.bitCount(data.get(i) & 0xFF);
+	return numSlots - used;
     }
 
     /**
@@ -335,7 +358,7 @@ public class HeapPage implements Page {
         // some code goes here
 	int headerbit = i % 8;
 	int headerbyte = (i - headerbit) / 8;
-	return (header[headerbyte] & (1 << headerbit)) != 0;
+	return (data.get(headerbyte) & (1 << headerbit)) != 0;
     }
 
     /**
@@ -349,10 +372,13 @@ public class HeapPage implements Page {
 	int headerbyte = (i - headerbit) / 8;
 
 	Debug.log(1, "HeapPage.setSlot: setting slot %d to %b", i, value);
+	ensureWritable();
+	byte b = data.get(headerbyte);
 	if(value)
-	    header[headerbyte] |= 1 << headerbit;
+	    b |= 1 << headerbit;
 	else
-	    header[headerbyte] &= (0xFF ^ (1 << headerbit));
+	    b &= (0xFF ^ (1 << headerbit));
+	data.put(headerbyte, b);
     }
 
     /**
@@ -380,7 +406,13 @@ public class HeapPage implements Page {
 	    }
 
 	    Debug.log(1, "HeapPage.getTuple: returning tuple %d", i);
-	    return tuples[i];
+	    Tuple t = tuples[i];
+	    if (t == null) {
+		t = new Tuple(td, data, slotOffset(i));
+		t.setRecordId(new RecordId(pid, i));
+		tuples[i] = t;
+	    }
+	    return t;
 
 	} catch (ArrayIndexOutOfBoundsException e) {
 	    throw new NoSuchElementException();
@@ -0,0 +1,209 @@
+package simpledb;
+
+import java.util.*;
+
+/**
+ * JoinHashTable holds the build side of a hash join, keyed on one field of
+ * its tuples.
+ * <p>
+ * The table avoids an object per row or per key: rows are kept in one
+ * array in the order they were added, and the rows with the same key are
+ * chained through a parallel array of row indexes.  Keys live in an
+ * open-addressing table (linear probing, at most half full) whose slots
+ * hold the key and the first and last row of its chain.  There is one
+ * subclass per field type, storing keys unboxed: ints as ints, and strings
+ * along with their hash codes, so probing rarely compares strings.
+ *
+ * @see HashEquiJoin
+ */
+abstract class JoinHashTable {
+
+    private static final int INITIAL_CAPACITY = 16;
+
+    private final Type type;
+    private final int field;
+
+    private Tuple[] rows = new Tuple[INITIAL_CAPACITY];
+    // nextRows[i] is the next row with the same key as row i, or -1
+    private int[] nextRows = new int[INITIAL_CAPACITY];
+    private int size = 0;
+
+    // first and last row with the key in each slot; heads is -1 for an
+    // empty slot.  null until the first row is added.
+    private int[] heads;
+    private int[] tails;
+    private int keys = 0;
+    protected int mask;
+
+    JoinHashTable(Type type, int field) {
+        this.type = type;
+        this.field = field;
+    }
+
+    /**
+     * Returns an empty table for tuples keyed on the given field, which
+     * is of the given type.
+     */
+    static JoinHashTable create(Type type, int field) {
+        if (type == Type.INT_TYPE)
+            return new IntTable(field);
+        if (type == Type.STRING_TYPE)
+            return new StringTable(field);
+        throw new IllegalArgumentException("can't hash fields of type " + type);
+    }
+
+    /** Returns the number of rows in the table. */
+    int size() {
+        return size;
+    }
+
+    /** Adds a row. */
+    void add(Tuple t) {
+        if (heads == null)
+            allocate(INITIAL_CAPACITY);
+        if (size == rows.length) {
+            rows = Arrays.copyOf(rows, size * 2);
+            nextRows = Arrays.copyOf(nextRows, size * 2);
+        }
+        Field key = t.getField(field);
+        int s = find(key);
+        rows[size] = t;
+        nextRows[size] = -1;
+        if (heads[s] == -1) {
+            heads[s] = size;
+            setKey(s, key);
+            keys++;
+        } else {
+            nextRows[tails[s]] = size;
+        }
+        tails[s] = size;
+        size++;
+        if (keys * 2 > heads.length)
+            allocate(heads.length * 2);
+    }
+
+    /**
+     * Returns the first row added with the given key, or -1 if there is
+     * none.  The other rows follow through {@link #next}.
+     */
+    int first(Field key) {
+        if (heads == null || key.getType() != type)
+            return -1;
+        return heads[find(key)];
+    }
+
+    /** Returns the row added after row with the same key, or -1. */
+    int next(int row) {
+        return nextRows[row];
+    }
+
+    /** Returns the tuple of a row. */
+    Tuple row(int row) {
+        return rows[row];
+    }
+
+    /** Removes every row. */
+    void clear() {
+        rows = new Tuple[INITIAL_CAPACITY];
+        nextRows = new int[INITIAL_CAPACITY];
+        size = 0;
+        heads = null;
+        tails = null;
+        keys = 0;
+    }
+
+    /** Returns true if slot holds no key. */
+    protected boolean empty(int slot) {
+        return heads[slot] == -1;
+    }
+
+    /** Returns the slot holding key, or the empty slot it would go in. */
+    protected abstract int find(Field key);
+
+    /** Stores key in an empty slot. */
+    protected abstract void setKey(int slot, Field key);
+
+    /** Replaces the keys with empty ones for a table of capacity slots. */
+    protected abstract void allocateKeys(int capacity);
+
+    /** Spreads the bits of a hash code over the low bits used as slots. */
+    protected static int mix(int h) {
+        h *= 0x9e3779b9;
+        return h ^ (h >>> 16);
+    }
+
+    // (re)builds the slots with the given capacity, a power of two
+    private void allocate(int capacity) {
+        int[] oldHeads = heads;
+        int[] oldTails = tails;
+        heads = new int[capacity];
+        Arrays.fill(heads, -1);
+        tails = new int[capacity];
+        mask = capacity - 1;
+        allocateKeys(capacity);
+        if (oldHeads == null)
+            return;
+        for (int old = 0; old < oldHeads.length; old++) {
+            if (oldHeads[old] == -1)
+                continue;
+            Field key = rows[oldHeads[old]].getField(field);
+            int s = find(key);
+            heads[s] = oldHeads[old];
+            tails[s] = oldTails[old];
+            setKey(s, key);
+        }
+    }
+
+    private static class IntTable extends JoinHashTable {
+        private int[] keys;
+
+        IntTable(int field) {
+            super(Type.INT_TYPE, field);
+        }
+
+        protected int find(Field key) {
+            int k = ((IntField) key).getValue();
+            int s = mix(k) & mask;
+            while (!empty(s) && keys[s] != k)
+                s = (s + 1) & mask;
+            return s;
+        }
+
+        protected void setKey(int slot, Field key) {
+            keys[slot] = ((IntField) key).getValue();
+        }
+
+        protected void allocateKeys(int capacity) {
+            keys = new int[capacity];
+        }
+    }
+
+    private static class StringTable extends JoinHashTable {
+        private String[] keys;
+        private int[] hashes;
+
+        StringTable(int field) {
+            super(Type.STRING_TYPE, field);
+        }
+
+        protected int find(Field key) {
+            String k = ((StringField) key).getValue();
+            int h = k.hashCode();
+            int s = mix(h) & mask;
+            while (!empty(s) && (hashes[s] != h || !keys[s].equals(k)))
+                s = (s + 1) & mask;
+            return s;
+        }
+
+        protected void setKey(int slot, Field key) {
+            String k = ((StringField) key).getValue();
+            keys[slot] = k;
+            hashes[slot] = k.hashCode();
+        }
+
+        protected void allocateKeys(int capacity) {
+            keys = new String[capacity];
+            hashes = new int[capacity];
+        }
+    }
+}
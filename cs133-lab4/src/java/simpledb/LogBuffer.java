@@ -0,0 +1,276 @@
+package simpledb;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.LockSupport;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * LogBuffer is the in-memory tail of the log.  Log records are appended
+ * to a ring buffer without taking a lock, and a background thread writes
+ * them to the log file in order.
+ * <p>
+ * Positions in the buffer are log sequence numbers (LSNs), which are also
+ * the positions of the records in the {@link LogSegments}.  An appender reserves room for its record by
+ * advancing the tail with a compare-and-set, copies the record in, and then
+ * publishes it once every record before it has been published.  Only
+ * published bytes are written to the file, so the file never has holes.
+ * <p>
+ * Operations that replace the log (e.g., starting a new one) first
+ * {@link #seal} the buffer, which stops new appends and writes out every
+ * record already appended, and then {@link #unseal} it at the new end of
+ * the log.
+ *
+ * @see LogFile
+ * @Threadsafe
+ */
+class LogBuffer {
+
+    /** Value of the tail while the buffer is sealed. */
+    private static final long SEALED = Long.MIN_VALUE;
+
+    /** How long the drain thread stays around with nothing to write. */
+    static final long DRAINER_IDLE_MILLIS = 1000;
+
+    private final byte[] ring;
+    private final AtomicLong tail = new AtomicLong(SEALED); // next LSN to reserve
+    private volatile long published; // all bytes before this are in the ring
+    private volatile long flushed; // all bytes before this are in the file
+    private volatile long durable; // all bytes before this have been forced
+
+    // protected by drainLock
+    private LogSegments log;
+    private final ReentrantLock drainLock = new ReentrantLock();
+    private final Object forceLock = new Object();
+    private final Object unsealed = new Object();
+    private final AtomicReference<Thread> drainer = new AtomicReference<Thread>();
+
+    /**
+     * Creates a sealed buffer that holds up to capacity bytes of records
+     * that have not been written to the file yet.
+     */
+    LogBuffer(int capacity) {
+        ring = new byte[capacity];
+    }
+
+    /**
+     * Appends a record.  The last 8 bytes of record are overwritten with
+     * the LSN at which the record starts, which every log record ends with.
+     * Blocks while the buffer is sealed or full.
+     *
+     * @return the LSN of the start of the record
+     */
+    long append(byte[] record) throws IOException {
+        int len = record.length;
+        if (len > ring.length)
+            throw new IOException("log record of " + len + " bytes does not fit in log buffer");
+
+        long start;
+        while (true) {
+            long t = tail.get();
+            if (t == SEALED) {
+                awaitUnsealed();
+                continue;
+            }
+            if (t + len - flushed > ring.length) {
+                // full: write out enough for this record ourselves
+                drain(t + len - ring.length);
+                continue;
+            }
+            if (tail.compareAndSet(t, t + len)) {
+                start = t;
+                break;
+            }
+        }
+
+        ByteBuffer.wrap(record).putLong(len - LogFile.LONG_SIZE, start);
+        int pos = (int) (start % ring.length);
+        int first = Math.min(len, ring.length - pos);
+        System.arraycopy(record, 0, ring, pos, first);
+        if (first < len)
+            System.arraycopy(record, first, ring, 0, len - first);
+
+        // publish in LSN order: wait for the records reserved before ours
+        while (published != start)
+            Thread.yield();
+        published = start + len;
+
+        Thread d = drainer.get();
+        if (d != null)
+            LockSupport.unpark(d);
+        else
+            startDrainer();
+        return start;
+    }
+
+    /**
+     * Returns the LSN that the next record will start at, i.e., the end of
+     * the log, or a negative number while the buffer is sealed.
+     */
+    long tail() {
+        return tail.get();
+    }
+
+    /**
+     * Writes every record that ends at or before upto to the log file.
+     */
+    void flush(long upto) throws IOException {
+        if (flushed < upto)
+            drain(upto);
+    }
+
+    /**
+     * Writes every record appended so far to the log file and forces the
+     * file to disk.
+     */
+    void force() throws IOException {
+        force(published);
+    }
+
+    /**
+     * Writes every record that ends at or before upto to the log file and
+     * forces the file to disk.  Concurrent callers share one force.
+     */
+    void force(long upto) throws IOException {
+        if (durable >= upto)
+            return;
+        synchronized (forceLock) {
+            if (durable >= upto)
+                return;
+            // cover everything published so far, not just what was asked for
+            long target = Math.max(upto, published);
+            drain(target);
+            LogSegments l;
+            drainLock.lock();
+            try {
+                l = log;
+            } finally {
+                drainLock.unlock();
+            }
+            if (l != null)
+                l.force();
+            durable = target;
+        }
+    }
+
+    /**
+     * Stops new appends and writes every record appended so far to the
+     * file.  The caller must eventually call {@link #unseal}; only one
+     * thread may seal the buffer at a time.
+     *
+     * @return the end of the log, or -1 if the buffer was already sealed
+     */
+    long seal() throws IOException {
+        long t;
+        do {
+            t = tail.get();
+            if (t == SEALED)
+                return -1;
+        } while (!tail.compareAndSet(t, SEALED));
+        drain(t);
+        return t;
+    }
+
+    /**
+     * Resumes appends to the given log, which ends at LSN end.
+     */
+    void unseal(LogSegments l, long end) {
+        drainLock.lock();
+        try {
+            log = l;
+            published = end;
+            flushed = end;
+            durable = end;
+        } finally {
+            drainLock.unlock();
+        }
+        tail.set(end);
+        synchronized (unsealed) {
+            unsealed.notifyAll();
+        }
+    }
+
+    private void awaitUnsealed() throws IOException {
+        synchronized (unsealed) {
+            try {
+                while (tail.get() == SEALED)
+                    unsealed.wait();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("interrupted while the log was sealed");
+            }
+        }
+    }
+
+    /**
+     * Writes published records to the file, sequentially, until at least
+     * upto has been written.  Waits for records before upto that are still
+     * being copied in.
+     */
+    private void drain(long upto) throws IOException {
+        drainLock.lock();
+        try {
+            while (flushed < upto) {
+                long p = published;
+                if (p <= flushed) {
+                    Thread.yield();
+                    continue;
+                }
+                write(flushed, p);
+                flushed = p;
+            }
+        } finally {
+            drainLock.unlock();
+        }
+    }
+
+    /** Writes ring bytes [from, to) at the same LSNs of the log. */
+    private void write(long from, long to) throws IOException {
+        while (from < to) {
+            int pos = (int) (from % ring.length);
+            int n = (int) Math.min(to - from, ring.length - pos);
+            log.write(ByteBuffer.wrap(ring, pos, n), from);
+            from += n;
+        }
+    }
+
+    private void startDrainer() {
+        Thread d = new Thread("LogBuffer drainer") {
+            public void run() {
+                drainLoop(this);
+            }
+        };
+        d.setDaemon(true);
+        if (drainer.compareAndSet(null, d))
+            d.start();
+    }
+
+    /** Main loop of the drain thread; exits when idle for a while. */
+    private void drainLoop(Thread self) {
+        long idleSince = System.currentTimeMillis();
+        while (true) {
+            long p = published;
+            if (p > flushed && tail.get() != SEALED) {
+                try {
+                    drain(p);
+                } catch (IOException e) {
+                    // leave it for the next flush or force, which will
+                    // report the error to its caller
+                    LockSupport.parkNanos(this, 10000000L);
+                }
+                idleSince = System.currentTimeMillis();
+                continue;
+            }
+            if (System.currentTimeMillis() - idleSince > DRAINER_IDLE_MILLIS) {
+                drainer.compareAndSet(self, null);
+                // an append that saw us still running may not have been written
+                if (published > flushed && drainer.compareAndSet(null, self))
+                    continue;
+                return;
+            }
+            LockSupport.parkNanos(this, 10000000L);
+        }
+    }
+}
@@ -3,6 +3,17 @@ package simpledb;
 
 import java.io.*;
 import java.util.*;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.lang.reflect.*;
 
 /**
@@ -32,27 +43,41 @@ must not be declared synchronized and must begin with a block like:
        }
     }
 </pre>
+
+<p> Appending a record does not take the LogFile monitor at all: records
+go into an in-memory {@link LogBuffer}, which writes them to the log in
+the background.  Anything that reads the log must first flush that
+buffer.
+
+<p> Checkpoints take neither monitor for their duration, only while
+flushing each page and while moving the checkpoint pointer; they are
+serialized with each other and with truncation by a separate lock, which
+is always taken first.
 */
 
 /**
-<p> The format of the log file is as follows:
+<p> The format of the log is as follows:
 
 <ul>
 
-<li> The first long integer of the file represents the offset of the
-last written checkpoint, or -1 if there are no checkpoints
+<li> The log is a sequence of fixed-size segment files, named after
+the log file, and the log file itself is a manifest that records the
+offset of the last written checkpoint, or -1 if there are no
+checkpoints, and the first offset still in the log.  Offsets (LSNs) are
+positions in the sequence of segments and never change; truncation
+deletes whole segments.  See {@link LogSegments}.
 
-<li> All additional data in the log consists of log records.  Log
+<li> All data in the segments consists of log records.  Log
 records are variable length.
 
 <li> Each log record begins with an integer type and a long integer
 transaction id.
 
-<li> Each log record ends with a long integer file offset representing
-the position in the log file where the record began.
+<li> Each log record ends with a long integer offset representing
+the position in the log where the record began.
 
-<li> There are five record types: ABORT, COMMIT, UPDATE, BEGIN, and
-CHECKPOINT
+<li> There are six record types: ABORT, COMMIT, UPDATE, DELTA, BEGIN,
+and CHECKPOINT
 
 <li> ABORT, COMMIT, and BEGIN records contain no additional data
 
@@ -61,11 +86,25 @@ after image.  These images are serialized Page objects, and can be
 accessed with the LogFile.readPageData() and LogFile.writePageData()
 methods.  See LogFile.print() for an example.
 
-<li> CHECKPOINT records consist of active transactions at the time
-the checkpoint was taken and their first log record on disk.  The format
-of the record is an integer count of the number of transactions, as well
+<li>DELTA records are compact UPDATE records.  They hold the id of the
+page and only the byte ranges in which the before and after images
+differ -- for a HeapPage, the changed header bytes and slots -- with
+both versions of each range.  See {@link PageDelta}.  logWrite() writes
+a DELTA record whenever the two images are the same size.
+
+<li> CHECKPOINT records begin with a long integer begin LSN, the end
+of the log just before the checkpoint started.  Then come the active
+transactions at the time the checkpoint was taken and their first log
+record on disk.  The format is an integer count of the number of
+transactions, as well
 as a long integer transaction id and a long integer first record offset
-for each active transaction.
+for each active transaction.  This is followed by the dirty-page table:
+an integer count of dirty pages, and for each a page id (see
+PageDelta.writePageId) and the long integer recLSN, the offset of the log
+when the page was first dirtied.  Recovery starts at the earliest of
+the begin LSN and the first records of the active transactions: records
+before the begin LSN either belong to an active transaction or are for
+pages that were clean, or written by the checkpoint, when it finished.
 
 </ul>
 
@@ -74,24 +113,76 @@ for each active transaction.
 public class LogFile {
 
     final File logFile;
-    private RandomAccessFile raf;
-    Boolean recoveryUndecided; // no call to recover() and no append to log
+    final LogSegments segments;
+    volatile Boolean recoveryUndecided; // no call to recover() and no append to log
+
+    /** Size in bytes of the in-memory log buffer. */
+    static final int LOG_BUFFER_SIZE = 1 << 20;
+
+    // records not yet written to segments; sealed until the first append or recover()
+    final LogBuffer buffer = new LogBuffer(LOG_BUFFER_SIZE);
 
     static final int ABORT_RECORD = 1;
     static final int COMMIT_RECORD = 2;
     static final int UPDATE_RECORD = 3;
     static final int BEGIN_RECORD = 4;
     static final int CHECKPOINT_RECORD = 5;
+    static final int DELTA_RECORD = 6;
     static final long NO_CHECKPOINT_ID = -1;
 
     final static int INT_SIZE = 4;
     final static int LONG_SIZE = 8;
 
-    long currentOffset = -1;//protected by this
 //    int pageSize;
-    int totalRecords = 0; // for PatchTest //protected by this
+    final AtomicInteger totalRecords = new AtomicInteger(); // for PatchTest
+
+    final Map<Long,Long> tidToFirstLogRecord = new ConcurrentHashMap<Long,Long>();
+
+    /** How long the commit flusher stays around with nothing to do. */
+    static final long FLUSHER_IDLE_MILLIS = 1000;
+
+    // group commit: committers queue a PendingCommit and the flusher thread
+    // appends their COMMIT records and forces the log once per batch.
+    // commitQueue, flusher and batchDelayNanos are protected by commitQueue
+    private final LinkedList<PendingCommit> commitQueue = new LinkedList<PendingCommit>();
+    private Thread flusher = null;
+    private long batchDelayNanos = 0;
+
+    // serializes checkpoints and truncation; taken before any monitor
+    private final Object checkpointLock = new Object();
+    // set while startCheckpoint()'s thread is running
+    private final AtomicBoolean checkpointing = new AtomicBoolean();
+
+    // number of threads that recover() applies updates with
+    private volatile int recoveryThreads = Runtime.getRuntime().availableProcessors();
+
+    /** A COMMIT record waiting to be written and forced. */
+    private static class PendingCommit {
+        final TransactionId tid;
+        final CountDownLatch done = new CountDownLatch(1);
+        IOException error; // set before done is counted down
+
+        PendingCommit(TransactionId tid) {
+            this.tid = tid;
+        }
 
-    HashMap<Long,Long> tidToFirstLogRecord = new HashMap<Long,Long>();
+        /** Waits, uninterruptibly, until the record is on disk. */
+        void await() throws IOException {
+            boolean interrupted = false;
+            while (true) {
+                try {
+                    done.await();
+                    break;
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+            if (interrupted)
+                Thread.currentThread().interrupt();
+            if (error != null)
+                throw error;
+        }
+    }
 
     /** Constructor.
         Initialize and back the log file with the specified file.
@@ -105,8 +196,13 @@ public class LogFile {
         @param f The log file's name
     */
     public LogFile(File f) throws IOException {
+        this(f, LogSegments.DEFAULT_SEGMENT_SIZE);
+    }
+
+    /** Constructor for a log whose segment files hold segmentSize bytes. */
+    LogFile(File f, long segmentSize) throws IOException {
 	this.logFile = f;
-        raf = new RandomAccessFile(f, "rw");
+        segments = new LogSegments(f, segmentSize);
         recoveryUndecided = true;
 
         // install shutdown hook to force cleanup on close
@@ -124,19 +220,42 @@ public class LogFile {
     // DB wants to do recovery, we're sure now -- it didn't. So truncate
     // the log.
     void preAppend() throws IOException {
-        totalRecords++;
+        totalRecords.incrementAndGet();
         if(recoveryUndecided){
-            recoveryUndecided = false;
-            raf.seek(0);
-            raf.setLength(0);
-            raf.writeLong(NO_CHECKPOINT_ID);
-            raf.seek(raf.length());
-            currentOffset = raf.getFilePointer();
+            synchronized (this) {
+                if (recoveryUndecided) {
+                    recoveryUndecided = false;
+                    segments.reset();
+                    buffer.unseal(segments, segments.end());
+                }
+            }
         }
     }
 
-    public synchronized int getTotalRecords() {
-        return totalRecords;
+    /**
+     * Appends a record that has been written to rec, which must write to
+     * bytes.  Adds the trailing start offset that every record ends with.
+     *
+     * @return the offset of the start of the record
+     */
+    private long append(ByteArrayOutputStream bytes, DataOutputStream rec)
+        throws IOException {
+        rec.writeLong(0); // filled in by the buffer
+        rec.flush();
+        return buffer.append(bytes.toByteArray());
+    }
+
+    /**
+     * Returns the offset the next log record will be written at, or 0
+     * before the log has been started or recovered.
+     */
+    long currentLSN() {
+        long t = buffer.tail();
+        return t >= 0 ? t : 0;
+    }
+
+    public int getTotalRecords() {
+        return totalRecords.get();
     }
     
     /** Write an abort record to the log for the specified tid, force
@@ -158,10 +277,11 @@ public class LogFile {
                 // live transactions (needs tidToFirstLogRecord)
                 rollback(tid);
 
-                raf.writeInt(ABORT_RECORD);
-                raf.writeLong(tid.getId());
-                raf.writeLong(currentOffset);
-                currentOffset = raf.getFilePointer();
+                ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+                DataOutputStream rec = new DataOutputStream(bytes);
+                rec.writeInt(ABORT_RECORD);
+                rec.writeLong(tid.getId());
+                append(bytes, rec);
                 force();
                 tidToFirstLogRecord.remove(tid.getId());
             }
@@ -170,20 +290,127 @@ public class LogFile {
 
     /** Write a commit record to disk for the specified tid,
         and force the log to disk.
+        <p>
+        Commits are grouped: the record is handed to a flusher thread,
+        which writes the COMMIT records of all transactions that are
+        committing at the same time and forces the log once for all of
+        them.  Returns when the record is on disk.
 
         @param tid The committing transaction.
+        @see #setGroupCommitDelay
     */
-    public synchronized void logCommit(TransactionId tid) throws IOException {
-        preAppend();
-        Debug.log("COMMIT " + tid.getId());
-        //should we verify that this is a live transaction?
+    public void logCommit(TransactionId tid) throws IOException {
+        PendingCommit pc = new PendingCommit(tid);
+        synchronized (commitQueue) {
+            commitQueue.addLast(pc);
+            if (flusher == null)
+                startFlusher();
+            commitQueue.notifyAll();
+        }
+        pc.await();
+    }
+
+    // called with commitQueue held
+    private void startFlusher() {
+        flusher = new Thread("LogFile commit flusher") {
+            public void run() {
+                flushCommits();
+            }
+        };
+        flusher.setDaemon(true);
+        flusher.start();
+    }
+
+    /**
+     * Set how long the commit flusher may wait, after the first commit of
+     * a batch arrives, for more commits to share its force.  The default
+     * is 0: a batch is whatever queued up while the previous force ran.
+     */
+    public void setGroupCommitDelay(long delay, TimeUnit unit) {
+        synchronized (commitQueue) {
+            batchDelayNanos = unit.toNanos(delay);
+        }
+    }
+
+    /**
+     * Main loop of the commit flusher thread.  A batch that fails is
+     * failed as a whole, with the error, and the thread carries on; should
+     * it die anyway, the commits still queued get a new flusher.
+     */
+    private void flushCommits() {
+        try {
+            flushBatches();
+        } finally {
+            synchronized (commitQueue) {
+                if (flusher == Thread.currentThread()) {
+                    flusher = null;
+                    if (!commitQueue.isEmpty())
+                        startFlusher();
+                }
+            }
+        }
+    }
+
+    private void flushBatches() {
+        while (true) {
+            ArrayList<PendingCommit> batch = new ArrayList<PendingCommit>();
+            synchronized (commitQueue) {
+                try {
+                    long idleUntil = System.currentTimeMillis() + FLUSHER_IDLE_MILLIS;
+                    while (commitQueue.isEmpty()) {
+                        long idle = idleUntil - System.currentTimeMillis();
+                        if (idle <= 0) {
+                            flusher = null;
+                            return;
+                        }
+                        commitQueue.wait(idle);
+                    }
+                    long deadline = System.nanoTime() + batchDelayNanos;
+                    long wait;
+                    while ((wait = deadline - System.nanoTime()) > 0)
+                        TimeUnit.NANOSECONDS.timedWait(commitQueue, wait);
+                } catch (InterruptedException e) {
+                    // flush whatever is queued and carry on
+                }
+                batch.addAll(commitQueue);
+                commitQueue.clear();
+            }
+            if (batch.isEmpty())
+                continue;
 
-        raf.writeInt(COMMIT_RECORD);
-        raf.writeLong(tid.getId());
-        raf.writeLong(currentOffset);
-        currentOffset = raf.getFilePointer();
+            IOException error = null;
+            try {
+                writeCommits(batch);
+            } catch (IOException e) {
+                error = e;
+            } catch (Throwable e) {
+                error = new IOException("couldn't write commit records: " + e);
+                error.initCause(e);
+            }
+            for (PendingCommit pc : batch) {
+                pc.error = error;
+                pc.done.countDown();
+            }
+        }
+    }
+
+    /** Append COMMIT records for a batch of transactions and force them. */
+    private void writeCommits(List<PendingCommit> batch) throws IOException {
+        preAppend();
+        totalRecords.addAndGet(batch.size() - 1);
+        for (PendingCommit pc : batch) {
+            Debug.log("COMMIT " + pc.tid.getId());
+            //should we verify that this is a live transaction?
+
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            DataOutputStream rec = new DataOutputStream(bytes);
+            rec.writeInt(COMMIT_RECORD);
+            rec.writeLong(pc.tid.getId());
+            append(bytes, rec);
+        }
         force();
-        tidToFirstLogRecord.remove(tid.getId());
+        for (PendingCommit pc : batch)
+            tidToFirstLogRecord.remove(pc.tid.getId());
     }
 
     /** Write an UPDATE record to disk for the specified tid and page
@@ -194,11 +421,11 @@ public class LogFile {
 
         @see simpledb.Page#getBeforeImage
     */
-    public  synchronized void logWrite(TransactionId tid, Page before,
+    public void logWrite(TransactionId tid, Page before,
                                        Page after)
         throws IOException  {
-        Debug.log("WRITE, offset = " + raf.getFilePointer());
         preAppend();
+        Debug.log("WRITE, offset = " + buffer.tail());
         /* update record conists of
 
            record type
@@ -206,19 +433,30 @@ public class LogFile {
            before page data (see writePageData)
            after page data
            start offset
-        */
-        raf.writeInt(UPDATE_RECORD);
-        raf.writeLong(tid.getId());
 
-        writePageData(raf,before);
-        writePageData(raf,after);
-        raf.writeLong(currentOffset);
-        currentOffset = raf.getFilePointer();
+           a delta record has the changed ranges of both images
+           (see PageDelta.write) in place of the page data
+        */
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream rec = new DataOutputStream(bytes);
+        PageDelta delta = PageDelta.diff(before, after);
+        if (delta != null) {
+            rec.writeInt(DELTA_RECORD);
+            rec.writeLong(tid.getId());
+            delta.write(rec);
+        } else {
+            rec.writeInt(UPDATE_RECORD);
+            rec.writeLong(tid.getId());
+
+            writePageData(rec,before);
+            writePageData(rec,after);
+        }
+        append(bytes, rec);
 
-        Debug.log("WRITE OFFSET = " + currentOffset);
+        Debug.log("WRITE OFFSET = " + buffer.tail());
     }
 
-    void writePageData(RandomAccessFile raf, Page p) throws IOException{
+    void writePageData(DataOutput raf, Page p) throws IOException{
         PageId pid = p.getId();
         int pageInfo[] = pid.serialize();
 
@@ -246,7 +484,7 @@ public class LogFile {
         //        Debug.log ("WROTE PAGE DATA, CLASS = " + pageClassName + ", table = " +  pid.getTableId() + ", page = " + pid.pageno());
     }
 
-    Page readPageData(RandomAccessFile raf) throws IOException {
+    Page readPageData(DataInput raf) throws IOException {
         PageId pid;
         Page newPage = null;
 
@@ -265,22 +503,25 @@ public class LogFile {
             }
             pid = (PageId)idConsts[0].newInstance(idArgs);
 
-            Constructor<?>[] pageConsts = pageClass.getDeclaredConstructors();
+            Constructor<?> pageConst = pageClass.getDeclaredConstructor(idClass, byte[].class);
             int pageSize = raf.readInt();
 
             byte[] pageData = new byte[pageSize];
-            raf.read(pageData); //read before image
+            raf.readFully(pageData); //read before image
 
             Object[] pageArgs = new Object[2];
             pageArgs[0] = pid;
             pageArgs[1] = pageData;
 
-            newPage = (Page)pageConsts[0].newInstance(pageArgs);
+            newPage = (Page)pageConst.newInstance(pageArgs);
 
             //            Debug.log("READ PAGE OF TYPE " + pageClassName + ", table = " + newPage.getId().getTableId() + ", page = " + newPage.getId().pageno());
         } catch (ClassNotFoundException e){
             e.printStackTrace();
             throw new IOException();
+        } catch (NoSuchMethodException e) {
+            e.printStackTrace();
+            throw new IOException();
         } catch (InstantiationException e) {
             e.printStackTrace();
             throw new IOException();
@@ -299,7 +540,7 @@ public class LogFile {
         @param tid The transaction that is beginning
 
     */
-    public synchronized  void logXactionBegin(TransactionId tid)
+    public void logXactionBegin(TransactionId tid)
         throws IOException {
         Debug.log("BEGIN");
         if(tidToFirstLogRecord.get(tid.getId()) != null){
@@ -307,150 +548,143 @@ public class LogFile {
             throw new IOException("double logXactionBegin()");
         }
         preAppend();
-        raf.writeInt(BEGIN_RECORD);
-        raf.writeLong(tid.getId());
-        raf.writeLong(currentOffset);
-        tidToFirstLogRecord.put(tid.getId(), currentOffset);
-        currentOffset = raf.getFilePointer();
-
-        Debug.log("BEGIN OFFSET = " + currentOffset);
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream rec = new DataOutputStream(bytes);
+        rec.writeInt(BEGIN_RECORD);
+        rec.writeLong(tid.getId());
+        long start = append(bytes, rec);
+        tidToFirstLogRecord.put(tid.getId(), start);
+
+        Debug.log("BEGIN OFFSET = " + start);
     }
 
-    /** Checkpoint the log and write a checkpoint record. */
+    /** Checkpoint the log and write a checkpoint record.
+        <p>
+        Checkpoints are fuzzy: transactions keep running while one is
+        taken.  The end of the log is noted first, as the begin LSN; then
+        the CHECKPOINT record lists it, the active transactions and the
+        dirty-page table.  Whatever a transaction logs after the begin LSN
+        is replayed by recovery even if the snapshots missed it.  Then the pages in the table that are still
+        dirty since before the record are written, one at a time and in
+        file order.  Only when all of them are on disk is the checkpoint
+        pointer at the head of the log moved to the new record, and the
+        log truncated.  Until then recovery uses the previous checkpoint.
+
+        @see #startCheckpoint
+    */
     public void logCheckpoint() throws IOException {
-        //make sure we have buffer pool lock before proceeding
-        synchronized (Database.getBufferPool()) {
-            synchronized (this) {
-                //Debug.log("CHECKPOINT, offset = " + raf.getFilePointer());
-                preAppend();
-                long startCpOffset, endCpOffset;
-                Set<Long> keys = tidToFirstLogRecord.keySet();
-                Iterator<Long> els = keys.iterator();
-                force();
-                Database.getBufferPool().flushAllPages();
-                startCpOffset = raf.getFilePointer();
-                raf.writeInt(CHECKPOINT_RECORD);
-                raf.writeLong(-1); //no tid , but leave space for convenience
-
-                //write list of outstanding transactions
-                raf.writeInt(keys.size());
-                while (els.hasNext()) {
-                    Long key = els.next();
-                    Debug.log("WRITING CHECKPOINT TRANSACTION ID: " + key);
-                    raf.writeLong(key);
-                    //Debug.log("WRITING CHECKPOINT TRANSACTION OFFSET: " + tidToFirstLogRecord.get(key));
-                    raf.writeLong(tidToFirstLogRecord.get(key));
-                }
-
-                //once the CP is written, make sure the CP location at the
-                // beginning of the log file is updated
-                endCpOffset = raf.getFilePointer();
-                raf.seek(0);
-                raf.writeLong(startCpOffset);
-                raf.seek(endCpOffset);
-                raf.writeLong(currentOffset);
-                currentOffset = raf.getFilePointer();
-                //Debug.log("CP OFFSET = " + currentOffset);
+        synchronized (checkpointLock) {
+            preAppend();
+            BufferPool bp = Database.getBufferPool();
+            // anything logged from here on may be missing from the
+            // snapshots below, so recovery reads from here at the latest
+            long begin = currentLSN();
+            // copies, so the counts match the entries written
+            Map<Long,Long> active = new HashMap<Long,Long>(tidToFirstLogRecord);
+            Map<PageId,Long> dirty = bp.dirtyPageTable();
+
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            DataOutputStream rec = new DataOutputStream(bytes);
+            rec.writeInt(CHECKPOINT_RECORD);
+            rec.writeLong(-1); //no tid , but leave space for convenience
+            rec.writeLong(begin);
+
+            //write list of outstanding transactions
+            rec.writeInt(active.size());
+            for (Map.Entry<Long,Long> e : active.entrySet()) {
+                Debug.log("WRITING CHECKPOINT TRANSACTION ID: " + e.getKey());
+                rec.writeLong(e.getKey());
+                rec.writeLong(e.getValue());
             }
-        }
-
-        logTruncate();
-    }
-
-    /** Truncate any unneeded portion of the log to reduce its space
-        consumption */
-    public synchronized void logTruncate() throws IOException {
-        preAppend();
-        raf.seek(0);
-        long cpLoc = raf.readLong();
-
-        long minLogRecord = cpLoc;
-
-        if (cpLoc != -1L) {
-            raf.seek(cpLoc);
-            int cpType = raf.readInt();
-            @SuppressWarnings("unused")
-            long cpTid = raf.readLong();
-
-            if (cpType != CHECKPOINT_RECORD) {
-                throw new RuntimeException("Checkpoint pointer does not point to checkpoint record");
+            //and the dirty-page table
+            rec.writeInt(dirty.size());
+            for (Map.Entry<PageId,Long> e : dirty.entrySet()) {
+                PageDelta.writePageId(rec, e.getKey());
+                rec.writeLong(e.getValue());
             }
-
-            int numOutstanding = raf.readInt();
-
-            for (int i = 0; i < numOutstanding; i++) {
-                @SuppressWarnings("unused")
-                long tid = raf.readLong();
-                long firstLogRecord = raf.readLong();
-                if (firstLogRecord < minLogRecord) {
-                    minLogRecord = firstLogRecord;
+            long startCpOffset = append(bytes, rec);
+
+            // write the pages in file order; a page that was written and
+            // dirtied again since the record now has a later recLSN
+            List<PageId> order = new ArrayList<PageId>(dirty.keySet());
+            Collections.sort(order, new Comparator<PageId>() {
+                public int compare(PageId a, PageId b) {
+                    if (a.getTableId() != b.getTableId())
+                        return a.getTableId() < b.getTableId() ? -1 : 1;
+                    return a.pageNumber() - b.pageNumber();
                 }
-            }
-        }
-
-        // we can truncate everything before minLogRecord
-        File newFile = new File("logtmp" + System.currentTimeMillis());
-        RandomAccessFile logNew = new RandomAccessFile(newFile, "rw");
-        logNew.seek(0);
-        logNew.writeLong((cpLoc - minLogRecord) + LONG_SIZE);
-
-        raf.seek(minLogRecord);
-
-        //have to rewrite log records since offsets are different after truncation
-        while (true) {
-            try {
-                int type = raf.readInt();
-                long record_tid = raf.readLong();
-                long newStart = logNew.getFilePointer();
-
-                Debug.log("NEW START = " + newStart);
+            });
+            for (PageId pid : order)
+                bp.flushPageDirtySince(pid, startCpOffset);
 
-                logNew.writeInt(type);
-                logNew.writeLong(record_tid);
+            //once the pages are written, make sure the CP location in the
+            // manifest is updated
+            buffer.force(startCpOffset + bytes.size());
+            segments.setCheckpoint(startCpOffset);
+            //Debug.log("CP OFFSET = " + startCpOffset);
 
-                switch (type) {
-                case UPDATE_RECORD:
-                    Page before = readPageData(raf);
-                    Page after = readPageData(raf);
+            logTruncate();
+        }
+    }
 
-                    writePageData(logNew, before);
-                    writePageData(logNew, after);
-                    break;
-                case CHECKPOINT_RECORD:
-                    int numXactions = raf.readInt();
-                    logNew.writeInt(numXactions);
-                    while (numXactions-- > 0) {
-                        long xid = raf.readLong();
-                        long xoffset = raf.readLong();
-                        logNew.writeLong(xid);
-                        logNew.writeLong((xoffset - minLogRecord) + LONG_SIZE);
-                    }
-                    break;
-                case BEGIN_RECORD:
-                    tidToFirstLogRecord.put(record_tid,newStart);
-                    break;
+    /**
+     * Takes a checkpoint on a background thread, unless one started this
+     * way is still running.
+     *
+     * @return true if a checkpoint was started
+     */
+    public boolean startCheckpoint() {
+        if (!checkpointing.compareAndSet(false, true))
+            return false;
+        Thread t = new Thread("LogFile checkpointer") {
+            public void run() {
+                try {
+                    logCheckpoint();
+                } catch (IOException e) {
+                    System.out.println("ERROR TAKING CHECKPOINT -- IGNORING.");
+                    e.printStackTrace();
+                } finally {
+                    checkpointing.set(false);
                 }
-
-                //all xactions finish with a pointer
-                logNew.writeLong(newStart);
-                raf.readLong();
-
-            } catch (EOFException e) {
-                break;
             }
-        }
+        };
+        t.setDaemon(true);
+        t.start();
+        return true;
+    }
 
-        Debug.log("TRUNCATING LOG;  WAS " + raf.length() + " BYTES ; NEW START : " + minLogRecord + " NEW LENGTH: " + (raf.length() - minLogRecord));
+    /** Truncate any unneeded portion of the log to reduce its space
+        consumption.
+        <p>
+        Everything before the last checkpoint, and before the first record
+        of each transaction that was active when it was taken, is dropped
+        a whole segment at a time.  Nothing is copied, and appends carry on
+        while segments are deleted.
+        @see #setArchiveDirectory
+    */
+    public void logTruncate() throws IOException {
+        synchronized (checkpointLock) {
+            preAppend();
+            long cpLoc = segments.checkpoint();
+            if (cpLoc == NO_CHECKPOINT_ID)
+                return;
+
+            LogRecord cp = new LogReader(cpLoc).next(cpLoc + 1);
+            if (cp == null || cp.type != CHECKPOINT_RECORD)
+                throw new RuntimeException("Checkpoint pointer does not point to checkpoint record");
+            long minLogRecord = recoveryStart(cp);
 
-        raf.close();
-        logFile.delete();
-        newFile.renameTo(logFile);
-        raf = new RandomAccessFile(logFile, "rw");
-        raf.seek(raf.length());
-        newFile.delete();
+            int dropped = segments.truncate(minLogRecord);
+            Debug.log("TRUNCATING LOG; NEW START : " + minLogRecord + ", " + dropped + " SEGMENTS DROPPED");
+        }
+    }
 
-        currentOffset = raf.getFilePointer();
-        //print();
+    /**
+     * Move log segments dropped by truncation into dir rather than
+     * deleting them, or delete them again if dir is null.
+     */
+    public void setArchiveDirectory(File dir) {
+        segments.setArchiveDirectory(dir);
     }
 
     /** Rollback the specified transaction, setting the state of any
@@ -466,7 +700,27 @@ public class LogFile {
         synchronized (Database.getBufferPool()) {
             synchronized(this) {
                 preAppend();
-                // some code goes here
+                Long first = tidToFirstLogRecord.get(tid.getId());
+                if (first == null)
+                    throw new NoSuchElementException("transaction " + tid.getId() + " is not live");
+
+                long end = buffer.tail();
+                buffer.flush(end);
+                ArrayList<LogRecord> updates = new ArrayList<LogRecord>();
+                LogReader in = new LogReader(first);
+                LogRecord r;
+                while ((r = in.next(end)) != null) {
+                    if (r.tid == tid.getId() && r.isUpdate())
+                        updates.add(r);
+                }
+
+                // undo the newest update first
+                PageImages pages = new PageImages();
+                for (int i = updates.size() - 1; i >= 0; i--)
+                    pages.undo(updates.get(i));
+                pages.writeBack();
+                for (PageId pid : pages.pages())
+                    Database.getBufferPool().discardPage(pid);
             }
         }
     }
@@ -475,10 +729,10 @@ public class LogFile {
         is necessary so that start up can happen quickly (without
         extensive recovery.)
     */
-    public synchronized void shutdown() {
+    public void shutdown() {
         try {
             logCheckpoint();  //simple way to shutdown is to write a checkpoint record
-            raf.close();
+            segments.close();
         } catch (IOException e) {
             System.out.println("ERROR SHUTTING DOWN -- IGNORING.");
             e.printStackTrace();
@@ -492,19 +746,370 @@ public class LogFile {
     public void recover() throws IOException {
         synchronized (Database.getBufferPool()) {
             synchronized (this) {
-                recoveryUndecided = false;
-                // some code goes here
+                if (recoveryUndecided) {
+                    recoveryUndecided = false;
+                    segments.load();
+                    // new records go after the ones being recovered
+                    buffer.unseal(segments, segments.end());
+                }
+                long end = buffer.tail();
+                buffer.flush(end);
+
+                // start where the checkpoint began, or at the first record
+                // of a transaction that was active when it was taken
+                long cp = segments.checkpoint();
+                long start = segments.first();
+                if (cp != NO_CHECKPOINT_ID) {
+                    LogRecord cpRec = new LogReader(cp).next(end);
+                    if (cpRec == null || cpRec.type != CHECKPOINT_RECORD)
+                        throw new IOException("Checkpoint pointer does not point to checkpoint record");
+                    start = recoveryStart(cpRec);
+                }
+
+                // analysis: one sequential pass that finds the outcome of
+                // every transaction and sorts the updates by page
+                Map<PageId,List<LogRecord>> byPage = new LinkedHashMap<PageId,List<LogRecord>>();
+                Set<Long> committed = new HashSet<Long>();
+                Set<Long> aborted = new HashSet<Long>();
+                LogReader in = new LogReader(start);
+                LogRecord r;
+                while ((r = in.next(end)) != null) {
+                    if (r.type == COMMIT_RECORD) {
+                        committed.add(r.tid);
+                    } else if (r.type == ABORT_RECORD) {
+                        aborted.add(r.tid);
+                    } else if (r.isUpdate()) {
+                        List<LogRecord> l = byPage.get(r.pageId());
+                        if (l == null) {
+                            l = new ArrayList<LogRecord>();
+                            byPage.put(r.pageId(), l);
+                        }
+                        l.add(r);
+                    }
+                }
+                if (byPage.isEmpty())
+                    return;
+
+                // redo and undo: pages are independent, so each worker takes
+                // a share of the pages and applies each page's updates in
+                // log order
+                int n = Math.max(1, Math.min(recoveryThreads, byPage.size()));
+                List<List<PageId>> shares = new ArrayList<List<PageId>>();
+                for (int i = 0; i < n; i++)
+                    shares.add(new ArrayList<PageId>());
+                int next = 0;
+                for (PageId pid : byPage.keySet())
+                    shares.get(next++ % n).add(pid);
+
+                ExecutorService pool = Executors.newFixedThreadPool(n, new ThreadFactory() {
+                    public Thread newThread(Runnable task) {
+                        Thread t = new Thread(task, "LogFile recovery");
+                        t.setDaemon(true);
+                        return t;
+                    }
+                });
+                try {
+                    List<Future<Void>> done = new ArrayList<Future<Void>>();
+                    for (List<PageId> share : shares)
+                        done.add(pool.submit(new PageRecovery(share, byPage, committed, aborted)));
+                    for (Future<Void> f : done)
+                        awaitRecovery(f);
+                } finally {
+                    pool.shutdownNow();
+                }
+
+                BufferPool bp = Database.getBufferPool();
+                for (PageId pid : byPage.keySet())
+                    bp.discardPage(pid);
             }
          }
     }
 
+    /**
+     * Returns the first record recovery needs, given the last complete
+     * checkpoint: the checkpoint's begin LSN, or the first record of a
+     * transaction active when it was taken if that is earlier.  The
+     * dirty-page table's recLSNs are not needed: the checkpoint wrote
+     * every page in it before it became the last complete one.
+     */
+    private static long recoveryStart(LogRecord cp) {
+        long start = cp.begin;
+        for (Long first : cp.active.values())
+            start = Math.min(start, first);
+        return start;
+    }
+
+    /**
+     * Set how many threads recover() uses to apply updates.  The default
+     * is the number of processors.
+     */
+    public void setRecoveryThreads(int threads) {
+        if (threads < 1)
+            throw new IllegalArgumentException("need at least one recovery thread");
+        recoveryThreads = threads;
+    }
+
+    /** Waits for one recovery worker, rethrowing its error. */
+    private static void awaitRecovery(Future<Void> f) throws IOException {
+        try {
+            f.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("interrupted during recovery");
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof IOException)
+                throw (IOException) cause;
+            if (cause instanceof RuntimeException)
+                throw (RuntimeException) cause;
+            throw new RuntimeException(cause);
+        }
+    }
+
+    /**
+     * Recovers a share of the pages touched by the log: redoes the updates
+     * of committed transactions in log order, then undoes the updates of
+     * transactions that never finished, newest first, and writes each page
+     * once.  Aborted transactions were rolled back before their ABORT
+     * record was written, so their updates are skipped.
+     */
+    private static class PageRecovery implements Callable<Void> {
+        private final List<PageId> share;
+        private final Map<PageId,List<LogRecord>> byPage;
+        private final Set<Long> committed;
+        private final Set<Long> aborted;
+
+        PageRecovery(List<PageId> share, Map<PageId,List<LogRecord>> byPage,
+                     Set<Long> committed, Set<Long> aborted) {
+            this.share = share;
+            this.byPage = byPage;
+            this.committed = committed;
+            this.aborted = aborted;
+        }
+
+        public Void call() throws IOException {
+            PageImages pages = new PageImages();
+            for (PageId pid : share) {
+                List<LogRecord> updates = byPage.get(pid);
+                for (LogRecord u : updates) {
+                    if (committed.contains(u.tid))
+                        pages.redo(u);
+                }
+                for (int i = updates.size() - 1; i >= 0; i--) {
+                    LogRecord u = updates.get(i);
+                    if (!committed.contains(u.tid) && !aborted.contains(u.tid))
+                        pages.undo(u);
+                }
+            }
+            pages.writeBack();
+            return null;
+        }
+    }
+
     /** Print out a human readable represenation of the log */
     public void print() throws IOException {
-        // some code goes here
+        long end;
+        synchronized (this) {
+            if (recoveryUndecided) {
+                segments.load();
+                end = segments.end();
+            } else {
+                end = buffer.tail();
+                buffer.flush(end);
+            }
+            System.out.println("checkpoint at " + segments.checkpoint());
+            LogReader in = new LogReader(segments.first());
+            LogRecord r;
+            while ((r = in.next(end)) != null)
+                System.out.println(r);
+        }
+    }
+
+    /** A log record read back from the log file. */
+    static class LogRecord {
+        final int type;
+        final long tid;
+        final long offset;
+        Page before, after; // UPDATE records
+        PageDelta delta; // DELTA records
+        long begin; // CHECKPOINT records: the log's end when it started
+        Map<Long,Long> active; // and tid -> first record
+        Map<PageId,Long> dirty; // and page -> recLSN
+
+        LogRecord(int type, long tid, long offset) {
+            this.type = type;
+            this.tid = tid;
+            this.offset = offset;
+        }
+
+        boolean isUpdate() {
+            return type == UPDATE_RECORD || type == DELTA_RECORD;
+        }
+
+        /** The page an UPDATE or DELTA record applies to. */
+        PageId pageId() {
+            return type == UPDATE_RECORD ? after.getId() : delta.pid;
+        }
+
+        public String toString() {
+            String[] names = { "?", "ABORT", "COMMIT", "UPDATE", "BEGIN", "CHECKPOINT", "DELTA" };
+            String s = offset + ": " + (type > 0 && type < names.length ? names[type] : "type " + type)
+                + " tid " + tid;
+            if (type == UPDATE_RECORD)
+                s += " page " + after.getId().pageNumber() + " of table " + after.getId().getTableId();
+            else if (type == DELTA_RECORD)
+                s += " page " + delta.pid.pageNumber() + " of table " + delta.pid.getTableId();
+            else if (type == CHECKPOINT_RECORD)
+                s += " begin " + begin + " active " + active + " dirty " + dirty.size() + " pages";
+            return s;
+        }
+    }
+
+    /** Reads the record at offset, which in is positioned at. */
+    LogRecord readRecord(DataInput in, long offset) throws IOException {
+        LogRecord r = new LogRecord(in.readInt(), in.readLong(), offset);
+        switch (r.type) {
+        case UPDATE_RECORD:
+            r.before = readPageData(in);
+            r.after = readPageData(in);
+            break;
+        case DELTA_RECORD:
+            r.delta = PageDelta.read(in);
+            break;
+        case CHECKPOINT_RECORD:
+            r.begin = in.readLong();
+            r.active = new HashMap<Long,Long>();
+            int n = in.readInt();
+            while (n-- > 0) {
+                long xid = in.readLong();
+                r.active.put(xid, in.readLong());
+            }
+            r.dirty = new HashMap<PageId,Long>();
+            n = in.readInt();
+            while (n-- > 0) {
+                PageId pid = PageDelta.readPageId(in);
+                r.dirty.put(pid, in.readLong());
+            }
+            break;
+        }
+        if (in.readLong() != offset)
+            throw new IOException("corrupt log record at offset " + offset);
+        return r;
+    }
+
+    /**
+     * Reads records sequentially from the log, through a buffer.  The
+     * caller must have flushed the log buffer past every record it reads.
+     */
+    private class LogReader {
+        private final CountingInputStream count;
+        private final DataInputStream in;
+
+        LogReader(long from) {
+            count = new CountingInputStream(new BufferedInputStream(
+                    segments.openStream(from), 1 << 16), from);
+            in = new DataInputStream(count);
+        }
+
+        /** Returns the next record if it starts before end, or null. */
+        LogRecord next(long end) throws IOException {
+            if (count.position >= end)
+                return null;
+            return readRecord(in, count.position);
+        }
+    }
+
+    /** Keeps track of the log offset of the bytes read through it. */
+    private static class CountingInputStream extends FilterInputStream {
+        long position;
+
+        CountingInputStream(InputStream in, long position) {
+            super(in);
+            this.position = position;
+        }
+
+        public int read() throws IOException {
+            int b = super.read();
+            if (b != -1)
+                position++;
+            return b;
+        }
+
+        public int read(byte[] b, int off, int len) throws IOException {
+            int n = super.read(b, off, len);
+            if (n > 0)
+                position += n;
+            return n;
+        }
+
+        public long skip(long n) throws IOException {
+            long skipped = super.skip(n);
+            position += skipped;
+            return skipped;
+        }
+    }
+
+    /**
+     * The pages touched while rolling back or recovering.  Each page is
+     * read from disk at most once, updated in memory, and written back
+     * once by writeBack().  The caller then drops them from the BufferPool.
+     */
+    private static class PageImages {
+        private final Map<PageId,byte[]> data = new HashMap<PageId,byte[]>();
+        private final Map<PageId,String> classes = new HashMap<PageId,String>();
+
+        private byte[] get(String pageClassName, PageId pid) throws IOException {
+            byte[] bytes = data.get(pid);
+            if (bytes == null) {
+                try {
+                    bytes = Database.getCatalog().getDatabaseFile(pid.getTableId())
+                        .readPage(pid).getPageData();
+                } catch (IllegalArgumentException e) {
+                    // never written: the delta is against an empty page
+                    bytes = new byte[BufferPool.getPageSize()];
+                }
+                data.put(pid, bytes);
+                classes.put(pid, pageClassName);
+            }
+            return bytes;
+        }
+
+        private void put(Page p) {
+            data.put(p.getId(), p.getPageData());
+            classes.put(p.getId(), p.getClass().getName());
+        }
+
+        void redo(LogRecord r) throws IOException {
+            if (r.type == UPDATE_RECORD)
+                put(r.after);
+            else if (!r.delta.isEmpty())
+                r.delta.redo(get(r.delta.pageClassName, r.delta.pid));
+        }
+
+        void undo(LogRecord r) throws IOException {
+            if (r.type == UPDATE_RECORD)
+                put(r.before);
+            else if (!r.delta.isEmpty())
+                r.delta.undo(get(r.delta.pageClassName, r.delta.pid));
+        }
+
+        Set<PageId> pages() {
+            return data.keySet();
+        }
+
+        void writeBack() throws IOException {
+            for (Map.Entry<PageId,byte[]> e : data.entrySet()) {
+                PageId pid = e.getKey();
+                Page p = PageDelta.newPage(classes.get(pid), pid, e.getValue());
+                Database.getCatalog().getDatabaseFile(pid.getTableId()).writePage(p);
+            }
+        }
     }
 
-    public  synchronized void force() throws IOException {
-        raf.getChannel().force(true);
+    /** Write every record appended so far to the log file and force
+        it to disk. */
+    public void force() throws IOException {
+        buffer.force();
     }
 
 }
@@ -0,0 +1,312 @@
+package simpledb;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.*;
+
+/**
+ * LogSegments stores the log as a sequence of fixed-size segment files
+ * plus a small manifest file.
+ * <p>
+ * Log sequence numbers (LSNs) are logical offsets into the log that never
+ * change: the bytes at LSN n live in segment n / segmentSize, at offset
+ * n % segmentSize, and a record may continue into the next segment.  The
+ * segments are named after the manifest with the segment number appended,
+ * e.g., log.00000003.
+ * <p>
+ * The manifest holds the LSN of the last complete checkpoint and the first
+ * LSN still in the log.  It is replaced atomically (written to a temporary
+ * file and renamed) whenever either changes.  Truncation moves the first
+ * LSN forward and deletes, or archives, the segments that fall entirely
+ * before it; it never copies log records.
+ *
+ * @see LogFile
+ * @Threadsafe
+ */
+class LogSegments {
+
+    /** Default size in bytes of a segment file. */
+    static final long DEFAULT_SEGMENT_SIZE = 16 << 20;
+
+    private static final int MAGIC = 0x534c4f47; // "SLOG"
+
+    private final File manifest;
+    private final long segmentSize;
+    private File archiveDir = null;
+
+    // protected by this
+    private long checkpoint = LogFile.NO_CHECKPOINT_ID;
+    private long first = 0;
+    private final TreeMap<Long,FileChannel> open = new TreeMap<Long,FileChannel>();
+    private final Set<Long> unforced = new HashSet<Long>();
+
+    /**
+     * Creates a log stored in the given manifest file and segment files
+     * next to it.  Nothing is read or written until {@link #load} or
+     * {@link #reset} is called.
+     */
+    LogSegments(File manifest, long segmentSize) {
+        if (segmentSize <= 0)
+            throw new IllegalArgumentException("segment size must be positive");
+        this.manifest = manifest;
+        this.segmentSize = segmentSize;
+    }
+
+    /** Returns the file that holds segment seg. */
+    File segmentFile(long seg) {
+        return new File(manifest.getPath() + "." + String.format("%08d", seg));
+    }
+
+    /**
+     * Archive truncated segments by moving them into dir instead of
+     * deleting them, or delete them again if dir is null.
+     */
+    synchronized void setArchiveDirectory(File dir) {
+        archiveDir = dir;
+    }
+
+    /**
+     * Reads the manifest of an existing log.  A missing or empty manifest
+     * is an empty log.
+     *
+     * @throws IOException if the manifest is not that of a segmented log
+     */
+    synchronized void load() throws IOException {
+        closeAll();
+        checkpoint = LogFile.NO_CHECKPOINT_ID;
+        first = 0;
+        if (!manifest.exists() || manifest.length() == 0)
+            return;
+        DataInputStream in = new DataInputStream(new BufferedInputStream(
+                new FileInputStream(manifest)));
+        try {
+            if (manifest.length() < 4 + 3 * LogFile.LONG_SIZE || in.readInt() != MAGIC)
+                throw new IOException(manifest + " is not a log manifest");
+            long size = in.readLong();
+            if (size != segmentSize)
+                throw new IOException(manifest + " has segments of " + size
+                                      + " bytes, not " + segmentSize);
+            checkpoint = in.readLong();
+            first = in.readLong();
+        } finally {
+            in.close();
+        }
+    }
+
+    /** Deletes every segment and starts an empty log. */
+    synchronized void reset() throws IOException {
+        try {
+            load();
+        } catch (IOException e) {
+            // not a segmented log: there are no segments to delete
+        }
+        long end = end();
+        closeAll();
+        for (long seg = first / segmentSize; seg * segmentSize < end; seg++)
+            segmentFile(seg).delete();
+        checkpoint = LogFile.NO_CHECKPOINT_ID;
+        first = 0;
+        writeManifest();
+    }
+
+    /** Returns the first LSN in the log. */
+    synchronized long first() {
+        return first;
+    }
+
+    /**
+     * Returns the LSN just past the last byte in the segment files,
+     * counting only segments that follow each other without a gap.
+     */
+    synchronized long end() {
+        long seg = first / segmentSize;
+        long end = first;
+        while (true) {
+            File f = segmentFile(seg);
+            if (!f.exists())
+                return end;
+            long len = f.length();
+            end = Math.max(end, seg * segmentSize + len);
+            if (len < segmentSize)
+                return end;
+            seg++;
+        }
+    }
+
+    /** Returns the LSN of the last complete checkpoint, or -1. */
+    synchronized long checkpoint() {
+        return checkpoint;
+    }
+
+    /**
+     * Records the LSN of the last complete checkpoint.  The record must
+     * already be forced to disk.
+     */
+    synchronized void setCheckpoint(long lsn) throws IOException {
+        checkpoint = lsn;
+        writeManifest();
+    }
+
+    /**
+     * Drops every segment that ends at or before lsn; lsn becomes the new
+     * first LSN of the log if it is later.  Segments are deleted, or moved
+     * to the archive directory if there is one.  Segments that are still
+     * needed are not touched, so writers and readers after lsn can carry on.
+     *
+     * @return the number of segments dropped
+     */
+    synchronized int truncate(long lsn) throws IOException {
+        if (lsn <= first)
+            return 0;
+        long oldSeg = first / segmentSize;
+        long newSeg = lsn / segmentSize;
+        // the manifest goes first, so the log never starts in a missing segment
+        first = lsn;
+        writeManifest();
+
+        int dropped = 0;
+        for (long seg = oldSeg; seg < newSeg; seg++) {
+            FileChannel ch = open.remove(seg);
+            if (ch != null)
+                ch.close();
+            unforced.remove(seg);
+            File f = segmentFile(seg);
+            if (!f.exists())
+                continue;
+            if (archiveDir != null) {
+                if (!f.renameTo(new File(archiveDir, f.getName())))
+                    throw new IOException("can't archive log segment " + f);
+            } else if (!f.delete()) {
+                throw new IOException("can't delete log segment " + f);
+            }
+            dropped++;
+        }
+        return dropped;
+    }
+
+    /**
+     * Writes the bytes remaining in b at the given LSN, splitting them
+     * across segments as needed.
+     */
+    void write(ByteBuffer b, long lsn) throws IOException {
+        while (b.hasRemaining()) {
+            long seg = lsn / segmentSize;
+            long off = lsn % segmentSize;
+            int n = (int) Math.min(b.remaining(), segmentSize - off);
+            ByteBuffer part = b.duplicate();
+            part.limit(part.position() + n);
+            FileChannel ch = channel(seg, true);
+            while (part.hasRemaining())
+                off += ch.write(part, off);
+            b.position(b.position() + n);
+            lsn += n;
+        }
+    }
+
+    /**
+     * Reads up to b.remaining() bytes at the given LSN, without crossing
+     * into the next segment.
+     *
+     * @return the number of bytes read, or -1 at the end of the log
+     */
+    int read(ByteBuffer b, long lsn) throws IOException {
+        long seg = lsn / segmentSize;
+        long off = lsn % segmentSize;
+        FileChannel ch = channel(seg, false);
+        if (ch == null)
+            return -1;
+        ByteBuffer part = b.duplicate();
+        part.limit(part.position() + (int) Math.min(b.remaining(), segmentSize - off));
+        int n = ch.read(part, off);
+        if (n > 0)
+            b.position(b.position() + n);
+        return n;
+    }
+
+    /** Forces every segment written since the last force to disk. */
+    void force() throws IOException {
+        List<FileChannel> chs = new ArrayList<FileChannel>();
+        synchronized (this) {
+            for (Long seg : unforced) {
+                FileChannel ch = open.get(seg);
+                if (ch != null)
+                    chs.add(ch);
+            }
+            unforced.clear();
+        }
+        for (FileChannel ch : chs)
+            ch.force(false);
+    }
+
+    /** Returns an input stream over the log, starting at the given LSN. */
+    InputStream openStream(final long from) {
+        return new InputStream() {
+            private long lsn = from;
+            private final byte[] one = new byte[1];
+
+            public int read() throws IOException {
+                return read(one, 0, 1) == 1 ? one[0] & 0xff : -1;
+            }
+
+            public int read(byte[] buf, int off, int len) throws IOException {
+                if (len == 0)
+                    return 0;
+                int n = LogSegments.this.read(ByteBuffer.wrap(buf, off, len), lsn);
+                if (n <= 0)
+                    return -1;
+                lsn += n;
+                return n;
+            }
+        };
+    }
+
+    /** Closes every segment file. */
+    synchronized void close() throws IOException {
+        closeAll();
+    }
+
+    private synchronized FileChannel channel(long seg, boolean create) throws IOException {
+        if (seg < first / segmentSize)
+            throw new IOException("log segment " + seg + " has been truncated");
+        FileChannel ch = open.get(seg);
+        if (ch == null || !ch.isOpen()) {
+            File f = segmentFile(seg);
+            if (!create && !f.exists())
+                return null;
+            ch = new RandomAccessFile(f, "rw").getChannel();
+            open.put(seg, ch);
+        }
+        if (create)
+            unforced.add(seg);
+        return ch;
+    }
+
+    private void closeAll() throws IOException {
+        for (FileChannel ch : open.values())
+            ch.close();
+        open.clear();
+        unforced.clear();
+    }
+
+    private void writeManifest() throws IOException {
+        File tmp = new File(manifest.getPath() + ".tmp");
+        FileOutputStream fos = new FileOutputStream(tmp);
+        try {
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(fos));
+            out.writeInt(MAGIC);
+            out.writeLong(segmentSize);
+            out.writeLong(checkpoint);
+            out.writeLong(first);
+            out.flush();
+            fos.getFD().sync();
+        } finally {
+            fos.close();
+        }
+        if (!tmp.renameTo(manifest)) {
+            manifest.delete();
+            if (!tmp.renameTo(manifest))
+                throw new IOException("can't replace log manifest " + manifest);
+        }
+    }
+}
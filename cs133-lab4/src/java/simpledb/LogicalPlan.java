@@ -298,6 +298,12 @@ public class LogicalPlan {
             } catch (NoSuchElementException e) {
                 throw new ParsingException("Unknown table " + table.t);
             }
+            // a table too big to cache is read through a ring of frames, so
+            // it doesn't push the working set out of the buffer pool
+            DbFile f = Database.getCatalog().getDatabaseFile(table.t);
+            if (f instanceof HeapFile
+                && Database.getBufferPool().isLargeScan(((HeapFile) f).numPages()))
+                ss.setScanRing(true);
             
             subplanMap.put(table.alias,ss);
             String baseTableName = Database.getCatalog().getTableName(table.t);
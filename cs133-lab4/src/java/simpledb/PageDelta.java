@@ -0,0 +1,185 @@
+package simpledb;
+
+import java.io.*;
+import java.lang.reflect.*;
+import java.util.*;
+
+/**
+ * PageDelta is the body of a DELTA log record: the byte ranges in which
+ * the after image of a page differs from its before image, with both
+ * versions of each range.
+ * <p>
+ * For a HeapPage, inserting or deleting a tuple changes a header byte and
+ * at most one slot, so a delta is a few dozen bytes where a pair of full
+ * page images is two pages.  Applying the after bytes redoes the update and
+ * applying the before bytes undoes it; both are idempotent.
+ *
+ * @see LogFile#logWrite
+ */
+class PageDelta {
+
+    /** Ranges separated by fewer unchanged bytes than this are merged. */
+    static final int MERGE_GAP = 8;
+
+    final String pageClassName;
+    final PageId pid;
+    private final int[] offsets;
+    private final byte[][] before;
+    private final byte[][] after;
+
+    private PageDelta(String pageClassName, PageId pid, int[] offsets,
+                      byte[][] before, byte[][] after) {
+        this.pageClassName = pageClassName;
+        this.pid = pid;
+        this.offsets = offsets;
+        this.before = before;
+        this.after = after;
+    }
+
+    /**
+     * Computes the delta between two images of a page, or returns null if
+     * they are not the same size.
+     */
+    static PageDelta diff(Page beforePage, Page afterPage) {
+        byte[] b = beforePage.getPageData();
+        byte[] a = afterPage.getPageData();
+        if (a.length != b.length)
+            return null;
+
+        ArrayList<int[]> ranges = new ArrayList<int[]>();
+        int i = 0;
+        while (i < a.length) {
+            if (a[i] == b[i]) {
+                i++;
+                continue;
+            }
+            int start = i, end = i + 1;
+            for (int j = end; j < a.length && j - end < MERGE_GAP; j++) {
+                if (a[j] != b[j])
+                    end = j + 1;
+            }
+            ranges.add(new int[] { start, end });
+            i = end;
+        }
+
+        int[] offsets = new int[ranges.size()];
+        byte[][] before = new byte[ranges.size()][];
+        byte[][] after = new byte[ranges.size()][];
+        for (int r = 0; r < offsets.length; r++) {
+            int[] range = ranges.get(r);
+            offsets[r] = range[0];
+            before[r] = Arrays.copyOfRange(b, range[0], range[1]);
+            after[r] = Arrays.copyOfRange(a, range[0], range[1]);
+        }
+        return new PageDelta(afterPage.getClass().getName(), afterPage.getId(),
+                             offsets, before, after);
+    }
+
+    /** Returns true if the two images were identical. */
+    boolean isEmpty() {
+        return offsets.length == 0;
+    }
+
+    /** Writes the bytes of the after image into data. */
+    void redo(byte[] data) {
+        for (int r = 0; r < offsets.length; r++)
+            System.arraycopy(after[r], 0, data, offsets[r], after[r].length);
+    }
+
+    /** Writes the bytes of the before image into data. */
+    void undo(byte[] data) {
+        for (int r = offsets.length - 1; r >= 0; r--)
+            System.arraycopy(before[r], 0, data, offsets[r], before[r].length);
+    }
+
+    /**
+     * Serializes this delta:
+     * <pre>
+     *   page class name, id class name (UTF)
+     *   int count and int values of the page id, as in PageId.serialize()
+     *   int number of ranges, then for each range
+     *     int offset, int length, before bytes, after bytes
+     * </pre>
+     */
+    void write(DataOutput out) throws IOException {
+        out.writeUTF(pageClassName);
+        writePageId(out, pid);
+
+        out.writeInt(offsets.length);
+        for (int r = 0; r < offsets.length; r++) {
+            out.writeInt(offsets[r]);
+            out.writeInt(before[r].length);
+            out.write(before[r]);
+            out.write(after[r]);
+        }
+    }
+
+    /** Reads a delta written by {@link #write}. */
+    static PageDelta read(DataInput in) throws IOException {
+        String pageClassName = in.readUTF();
+        PageId pid = readPageId(in);
+
+        int n = in.readInt();
+        int[] offsets = new int[n];
+        byte[][] before = new byte[n][];
+        byte[][] after = new byte[n][];
+        for (int r = 0; r < n; r++) {
+            offsets[r] = in.readInt();
+            int len = in.readInt();
+            before[r] = new byte[len];
+            in.readFully(before[r]);
+            after[r] = new byte[len];
+            in.readFully(after[r]);
+        }
+        return new PageDelta(pageClassName, pid, offsets, before, after);
+    }
+
+    /**
+     * Writes a page id as its class name followed by a count and the int
+     * values of PageId.serialize().
+     */
+    static void writePageId(DataOutput out, PageId pid) throws IOException {
+        out.writeUTF(pid.getClass().getName());
+        int[] idInfo = pid.serialize();
+        out.writeInt(idInfo.length);
+        for (int i = 0; i < idInfo.length; i++)
+            out.writeInt(idInfo[i]);
+    }
+
+    /** Reads a page id written by {@link #writePageId}. */
+    static PageId readPageId(DataInput in) throws IOException {
+        return readPageId(in.readUTF(), in);
+    }
+
+    /**
+     * Reads the int values of a page id, as written after the id class
+     * name, and builds the id.
+     */
+    static PageId readPageId(String idClassName, DataInput in) throws IOException {
+        int numIdArgs = in.readInt();
+        Object idArgs[] = new Object[numIdArgs];
+        for (int i = 0; i < numIdArgs; i++)
+            idArgs[i] = Integer.valueOf(in.readInt());
+        try {
+            Constructor<?>[] idConsts = Class.forName(idClassName).getDeclaredConstructors();
+            return (PageId) idConsts[0].newInstance(idArgs);
+        } catch (Exception e) {
+            throw new IOException("can't create page id of class " + idClassName + ": " + e);
+        }
+    }
+
+    /** Creates a page of the given class from its serialized bytes. */
+    static Page newPage(String pageClassName, PageId pid, byte[] data) throws IOException {
+        try {
+            Constructor<?> c = Class.forName(pageClassName)
+                .getDeclaredConstructor(pid.getClass(), byte[].class);
+            return (Page) c.newInstance(pid, data);
+        } catch (InvocationTargetException e) {
+            if (e.getCause() instanceof IOException)
+                throw (IOException) e.getCause();
+            throw new IOException("can't create page of class " + pageClassName + ": " + e.getCause());
+        } catch (Exception e) {
+            throw new IOException("can't create page of class " + pageClassName + ": " + e);
+        }
+    }
+}
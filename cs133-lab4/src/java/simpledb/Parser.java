@@ -598,6 +598,12 @@ public class Parser {
     static final String usage = "Usage: parser catalogFile [-explain] [-f queryFile]";
 
     protected void shutdown() {
+        try {
+            Database.getBufferPool().saveHotPages();
+        } catch (IOException e) {
+            System.out.println("Couldn't save hot pages");
+            e.printStackTrace();
+        }
         System.out.println("Bye");
     }
 
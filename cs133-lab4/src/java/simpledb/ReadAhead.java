@@ -0,0 +1,159 @@
+package simpledb;
+
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * ReadAhead reads the pages a sequential scan of a HeapFile is about to
+ * need on background threads, so the scan finds them in memory instead of
+ * waiting for the disk.
+ * <p>
+ * Pages are read into the buffer pool, or, for a scan that reads through
+ * a {@link BufferPool.ScanRing}, staged in the ring.  Reads into the pool
+ * take no locks and only ever evict clean pages; the scan locks each page
+ * when it gets to it.
+ * <p>
+ * The scan calls {@link #advance} before each page it fetches, and the
+ * read-ahead keeps up to a window of pages past it in flight.  The window
+ * adapts to the rate the scan consumes pages: it doubles whenever the
+ * scan has to wait for a read, and shrinks by one page after a window's
+ * worth of pages have all arrived in time, so it settles at about the
+ * number of reads the disk must have in flight to keep up with the scan.
+ *
+ * @see HeapFileIterator
+ */
+class ReadAhead {
+
+    /** Smallest and largest number of pages read ahead of a scan. */
+    static final int MIN_WINDOW = 2;
+    static final int MAX_WINDOW = 32;
+
+    /** Number of threads reading ahead, shared by all scans. */
+    static final int READERS = 4;
+
+    private static final ExecutorService readers =
+        Executors.newFixedThreadPool(READERS, new ThreadFactory() {
+                public Thread newThread(Runnable task) {
+                    Thread t = new Thread(task, "ReadAhead reader");
+                    t.setDaemon(true);
+                    return t;
+                }
+            });
+
+    private final HeapFile hf;
+    private final BufferPool.ScanRing ring;
+    private final int maxWindow;
+
+    // used by the scan's thread only
+    private final TreeMap<Integer,Future<?>> pending = new TreeMap<Integer,Future<?>>();
+    private int window;
+    private int inTime = 0;
+    private int next = 0;
+
+    private ReadAhead(HeapFile hf, BufferPool.ScanRing ring, int maxWindow) {
+        this.hf = hf;
+        this.ring = ring;
+        this.maxWindow = maxWindow;
+        this.window = MIN_WINDOW;
+    }
+
+    /**
+     * Returns a read-ahead for a scan of hf, which reads through ring if
+     * it is not null, or null if reading ahead would not help: a mapped
+     * file is read ahead by the operating system, and a small pool has no
+     * room for pages ahead of a scan.
+     */
+    static ReadAhead create(HeapFile hf, BufferPool.ScanRing ring) {
+        if (hf.isMapped())
+            return null;
+        int max = MAX_WINDOW;
+        if (ring == null)
+            max = Math.min(max, Database.getBufferPool().getNumPages()
+                           / BufferPool.LARGE_SCAN_FRACTION);
+        if (max < MIN_WINDOW)
+            return null;
+        return new ReadAhead(hf, ring, max);
+    }
+
+    /** Returns the current number of pages read ahead of the scan. */
+    int window() {
+        return window;
+    }
+
+    /**
+     * Called before the scan fetches page pgno: waits for the page if it
+     * is still being read, adapts the window, and starts reading the
+     * pages up to a window past pgno.
+     */
+    void advance(int pgno) {
+        // reads the scan has gone past are of no more use
+        while (!pending.isEmpty() && pending.firstKey() < pgno)
+            pending.pollFirstEntry().getValue().cancel(false);
+
+        Future<?> f = pending.remove(pgno);
+        if (f != null) {
+            if (!f.isDone()) {
+                window = Math.min(maxWindow, window * 2);
+                inTime = 0;
+                await(f);
+            } else if (++inTime >= window) {
+                window = Math.max(MIN_WINDOW, window - 1);
+                inTime = 0;
+            }
+        }
+
+        next = Math.max(next, pgno + 1);
+        int last = Math.min(pgno + window, hf.numPages() - 1);
+        for (; next <= last; next++)
+            pending.put(next, readers.submit(read(next)));
+    }
+
+    /** Cancels the reads in flight; the scan is done or starting over. */
+    void close() {
+        for (Future<?> f : pending.values())
+            f.cancel(false);
+        pending.clear();
+        next = 0;
+        if (ring != null)
+            ring.clearStaged();
+    }
+
+    private Runnable read(int pgno) {
+        final HeapPageId pid = new HeapPageId(hf.getId(), pgno);
+        return new Runnable() {
+            public void run() {
+                try {
+                    if (ring == null) {
+                        Database.getBufferPool().prefetchPage(pid);
+                    } else {
+                        long writes = hf.writeCount();
+                        ring.stage(hf.readPage(pid), hf, writes);
+                    }
+                } catch (RuntimeException e) {
+                    // e.g., the file has shrunk; the scan reads the page itself
+                }
+            }
+        };
+    }
+
+    private static void await(Future<?> f) {
+        boolean interrupted = false;
+        try {
+            while (true) {
+                try {
+                    f.get();
+                    return;
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                } catch (ExecutionException e) {
+                    return;
+                } catch (CancellationException e) {
+                    return;
+                }
+            }
+        } finally {
+            if (interrupted)
+                Thread.currentThread().interrupt();
+        }
+    }
+}
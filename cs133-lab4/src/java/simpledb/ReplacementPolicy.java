@@ -0,0 +1,59 @@
+package simpledb;
+
+import java.util.List;
+
+/**
+ * ReplacementPolicy decides which resident page the BufferPool discards
+ * when it needs a free frame.
+ * <p>
+ * The BufferPool reports every page that enters the pool, every hit on a
+ * resident page and every page that leaves it; the policy keeps whatever
+ * bookkeeping it needs and names a victim on demand.  Since
+ * {@link #pageAccessed} is called on every BufferPool.getPage() hit,
+ * without any BufferPool lock held, implementations must do constant work
+ * there and should avoid locking if they can.
+ *
+ * @see BufferPool#BufferPool(int, ReplacementPolicy)
+ * @Threadsafe
+ */
+public interface ReplacementPolicy {
+
+    /**
+     * Callback used by {@link #chooseVictim} to ask the BufferPool whether a
+     * resident page may be evicted right now (e.g., it is not dirty).
+     */
+    public interface Evictable {
+        public boolean canEvict(PageId pid);
+    }
+
+    /**
+     * Tell the policy how many pages the BufferPool holds.  Called before
+     * any other method, and again whenever the pool is resized.
+     */
+    public void setCapacity(int numPages);
+
+    /** A page that was not resident has been added to the pool. */
+    public void pageAdded(PageId pid);
+
+    /** A resident page has been requested again. */
+    public void pageAccessed(PageId pid);
+
+    /** A page has left the pool, either by eviction or by being discarded. */
+    public void pageRemoved(PageId pid);
+
+    /**
+     * Choose a resident page to evict.  The page is not removed from the
+     * policy's bookkeeping until {@link #pageRemoved} is called.
+     *
+     * @param evictable decides which of the resident pages may be evicted
+     * @return the page to evict, or null if no resident page is evictable
+     */
+    public PageId chooseVictim(Evictable evictable);
+
+    /**
+     * Returns the resident pages in the order the policy values them: the
+     * page it would evict last comes first.  Used to save the hot pages of
+     * the pool across restarts.
+     */
+    public List<PageId> residentPages();
+}
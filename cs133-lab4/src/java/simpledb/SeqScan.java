@@ -17,6 +17,7 @@ public class SeqScan implements DbIterator {
     private transient DbFileIterator it;
     private String tablename;
     private String alias;
+    private boolean scanRing = false;
 
     /**
      * Creates a sequential scan over the specified table as a part of the
@@ -76,6 +77,7 @@ public class SeqScan implements DbIterator {
         this.alias = tableAlias;
         this.tablename = Database.getCatalog().getTableName(tableid);
         this.it = Database.getCatalog().getDatabaseFile(tableid).iterator(tid);
+        setScanRing(scanRing);
         myTd = Database.getCatalog().getTupleDesc(tableid);
         String[] newNames = new String[myTd.numFields()];
         Type[] newTypes = new Type[myTd.numFields()];
@@ -93,6 +95,19 @@ public class SeqScan implements DbIterator {
         this(tid, tableid, Database.getCatalog().getTableName(tableid));
     }
 
+    /**
+     * Read the table through a small ring of private frames, so that the
+     * pages it reads don't evict other pages from the buffer pool.  Meant
+     * for tables that don't fit in the pool; see
+     * {@link BufferPool#isLargeScan}.  Has no effect on files other than
+     * HeapFiles.
+     */
+    public void setScanRing(boolean on) {
+        scanRing = on;
+        if (it instanceof HeapFileIterator)
+            ((HeapFileIterator) it).setScanRing(on);
+    }
+
     public void open() throws DbException, TransactionAbortedException {
         // some code goes here
         if (isOpen)
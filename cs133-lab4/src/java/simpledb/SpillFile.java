@@ -0,0 +1,70 @@
+package simpledb;
+
+import java.io.*;
+import java.util.*;
+
+/**
+ * SpillFile is a temporary file holding dirty pages of running
+ * transactions that the BufferPool had to evict.  Under NO STEAL such a
+ * page may not be written to its own file, so it is parked here until it
+ * is fetched again, its transaction commits, or it aborts.
+ * <p>
+ * The file is a sequence of slots, each holding the before image and the
+ * current image of one page.  Freed slots are reused, so the file only
+ * grows to the largest number of pages spilled at once.  It is deleted
+ * when closed, or when the JVM exits.
+ *
+ * @see BufferPool
+ * @Threadsafe
+ */
+class SpillFile {
+
+    private final File file;
+    private final RandomAccessFile raf;
+    private final int pageSize;
+
+    // protected by this
+    private int slots = 0;
+    private final LinkedList<Integer> free = new LinkedList<Integer>();
+
+    /** Creates an empty spill file for pages of the given size. */
+    SpillFile(int pageSize) throws IOException {
+        this.pageSize = pageSize;
+        this.file = File.createTempFile("simpledb", ".spill");
+        file.deleteOnExit();
+        this.raf = new RandomAccessFile(file, "rw");
+    }
+
+    /**
+     * Stores the before and current images of a page.
+     *
+     * @return the slot holding them, to pass to {@link #read} and {@link #free}
+     */
+    synchronized int write(byte[] before, byte[] after) throws IOException {
+        int slot = free.isEmpty() ? slots++ : free.removeFirst();
+        raf.seek((long) slot * 2 * pageSize);
+        raf.write(before, 0, pageSize);
+        raf.write(after, 0, pageSize);
+        return slot;
+    }
+
+    /** Returns the before and current images stored in slot, in that order. */
+    synchronized byte[][] read(int slot) throws IOException {
+        byte[][] images = new byte[2][pageSize];
+        raf.seek((long) slot * 2 * pageSize);
+        raf.readFully(images[0]);
+        raf.readFully(images[1]);
+        return images;
+    }
+
+    /** Makes slot available to later writes. */
+    synchronized void free(int slot) {
+        free.add(slot);
+    }
+
+    /** Closes and deletes the file. */
+    synchronized void close() throws IOException {
+        raf.close();
+        file.delete();
+    }
+}
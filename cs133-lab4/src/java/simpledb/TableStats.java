@@ -107,6 +107,8 @@ public class TableStats {
     	Transaction t = new Transaction(); 
     	t.start(); 
     	SeqScan s = new SeqScan(t.getId(), tableid, "t"); 
+    	// collecting statistics shouldn't flush the buffer pool
+    	s.setScanRing(true);
     	try {
     		s.open();
     		//find min and max of each int col and string cols
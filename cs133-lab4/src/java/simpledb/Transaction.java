@@ -46,16 +46,16 @@ public class Transaction {
             //write commit / abort records
             if (abort) {
                 Database.getLogFile().logAbort(tid); //does rollback too
+                try {
+                    Database.getBufferPool().transactionComplete(tid, false); // release locks
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
             } else {
-                //write all the dirty pages for this transaction out
-                Database.getBufferPool().flushPages(tid);
-                Database.getLogFile().logCommit(tid);
-            }
-
-            try {
-                Database.getBufferPool().transactionComplete(tid, !abort); // release locks
-            } catch (IOException e) {
-                e.printStackTrace();
+                //logs the changes to all the dirty pages for this transaction
+                //and the commit record, then releases locks; the pages
+                //themselves are written in the background
+                Database.getBufferPool().transactionComplete(tid, true);
             }
 
             //setting this here means we could possibly write multiple abort records -- OK?
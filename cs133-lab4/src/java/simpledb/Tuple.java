@@ -1,6 +1,9 @@
 package simpledb;
 
+import java.io.IOException;
+import java.io.ObjectOutputStream;
 import java.io.Serializable;
+import java.nio.ByteBuffer;
 import java.util.Arrays;
 import java.util.Iterator;
 
@@ -17,6 +20,13 @@ public class Tuple implements Serializable {
     private Field fields[];
     private transient TupleDesc td;
 
+    // for tuples read from a page: fields not yet in fields[] are decoded on
+    // demand from the tuple's bytes, which start at offset in buf and are
+    // laid out according to layout
+    private transient ByteBuffer buf;
+    private transient int offset;
+    private transient TupleDesc layout;
+
     /**
      * Create a new tuple with the specified schema (type).
      * 
@@ -29,6 +39,37 @@ public class Tuple implements Serializable {
         this.td = td;
     }
 
+    /**
+     * Create a tuple whose fields are stored in buf, starting at offset, in
+     * the format written by Field.serialize().  Each field is decoded the
+     * first time it is asked for; the bytes must not change until then, or
+     * until {@link #materialize} is called.
+     */
+    Tuple(TupleDesc td, ByteBuffer buf, int offset) {
+        this(td);
+        this.buf = buf;
+        this.offset = offset;
+        this.layout = td;
+    }
+
+    /**
+     * Decode every field that has not been decoded yet, so that this tuple
+     * no longer depends on the bytes it was created from.
+     */
+    void materialize() {
+        if (buf == null)
+            return;
+        for (int i = 0; i < fields.length; i++)
+            getField(i);
+        buf = null;
+        layout = null;
+    }
+
+    private void writeObject(ObjectOutputStream out) throws IOException {
+        materialize();
+        out.defaultWriteObject();
+    }
+
     /**
      * @return The TupleDesc representing the schema of this tuple.
      */
@@ -78,8 +119,17 @@ public class Tuple implements Serializable {
      *            field index to return. Must be a valid index.
      */
     public Field getField(int i) {
-        return fields[i];
-
+        Field f = fields[i];
+        ByteBuffer b = buf;
+        if (f == null && b != null) {
+            try {
+                f = layout.getFieldType(i).parse(b, offset + layout.getOffset(i));
+            } catch (java.text.ParseException e) {
+                throw new java.util.NoSuchElementException("parsing error!");
+            }
+            fields[i] = f;
+        }
+        return f;
     }
 
     /**
@@ -95,7 +145,7 @@ public class Tuple implements Serializable {
         for (int i = 0; i < fields.length; i++) {
             if (out.length() > 0)
                 out += "\t";
-            out += fields[i];
+            out += getField(i);
         }
         return out;
 
@@ -108,6 +158,7 @@ public class Tuple implements Serializable {
      * */
     public Iterator<Field> fields()
     {
+        materialize();
         return Arrays.asList(fields).iterator();
 
     }
@@ -49,6 +49,10 @@ public class TupleDesc implements Serializable {
 
     private final TDItem[] tdItems;
 
+    // byte offset of each field within a serialized tuple, and their total
+    private final int[] offsets;
+    private final int size;
+
     
     /**
      * Create a new TupleDesc with typeAr.length fields with fields of the
@@ -66,6 +70,8 @@ public class TupleDesc implements Serializable {
         for (int i = 0; i < typeAr.length; i++) {
             tdItems[i] = new TDItem(typeAr[i], fieldAr[i]);
         }
+        offsets = new int[typeAr.length];
+        size = computeOffsets();
     }
 
     /**
@@ -81,6 +87,17 @@ public class TupleDesc implements Serializable {
         for (int i = 0; i < typeAr.length; i++) {
             tdItems[i] = new TDItem(typeAr[i], "");
         }
+        offsets = new int[typeAr.length];
+        size = computeOffsets();
+    }
+
+    private int computeOffsets() {
+        int off = 0;
+        for (int i = 0; i < tdItems.length; i++) {
+            offsets[i] = off;
+            off += tdItems[i].fieldType.getLen();
+        }
+        return off;
     }
 
     /**
@@ -120,6 +137,18 @@ public class TupleDesc implements Serializable {
 
     }
 
+    /**
+     * Gets the offset in bytes of the ith field from the start of a tuple
+     * with this TupleDesc, as laid out on a page.
+     * 
+     * @param i
+     *            The index of the field. It must be a valid index.
+     * @return the byte offset of the ith field
+     */
+    public int getOffset(int i) {
+        return offsets[i];
+    }
+
     /**
      * Find the index of the field with a given name.
      * 
@@ -144,11 +173,7 @@ public class TupleDesc implements Serializable {
      *         Note that tuples from a given TupleDesc are of a fixed size.
      */
     public int getSize() {
-        int size = 0;
-        for (int i = 0; i < tdItems.length; i++)
-            size += tdItems[i].fieldType.getLen();
         return size;
-
     }
 
     /**
@@ -0,0 +1,112 @@
+package simpledb;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.text.ParseException;
+
+/**
+ * TupleFile is a temporary file of tuples with the same TupleDesc, for
+ * operators that have to set tuples aside on disk.  Tuples are appended
+ * with {@link #add} and can then be read back in the same order, any
+ * number of times, with {@link #reader}.
+ * <p>
+ * Each tuple is stored as its fields' serialized forms, which have a
+ * fixed size per TupleDesc; record ids are not kept.  The file is only
+ * created once the first tuple is added, and is deleted when closed, or
+ * when the JVM exits.
+ *
+ * @see HashEquiJoin
+ */
+class TupleFile {
+
+    private final TupleDesc td;
+    private File file = null;
+    private DataOutputStream out = null;
+    private int size = 0;
+
+    /** Creates an empty file for tuples of the given TupleDesc. */
+    TupleFile(TupleDesc td) {
+        this.td = td;
+    }
+
+    /** Returns the number of tuples added. */
+    int size() {
+        return size;
+    }
+
+    /** Appends a tuple. */
+    void add(Tuple t) throws IOException {
+        if (out == null) {
+            if (file == null) {
+                file = File.createTempFile("simpledb", ".tuples");
+                file.deleteOnExit();
+            }
+            out = new DataOutputStream(new BufferedOutputStream(
+                    new FileOutputStream(file, true)));
+        }
+        for (int i = 0; i < td.numFields(); i++)
+            t.getField(i).serialize(out);
+        size++;
+    }
+
+    /**
+     * Returns a reader positioned at the first tuple.  Tuples added after
+     * the reader is opened are not seen by it.
+     */
+    Reader reader() throws IOException {
+        if (out != null) {
+            out.close();
+            out = null;
+        }
+        return new Reader();
+    }
+
+    /** Deletes the file. */
+    void close() throws IOException {
+        if (out != null)
+            out.close();
+        out = null;
+        if (file != null)
+            file.delete();
+        file = null;
+        size = 0;
+    }
+
+    /** Reads the tuples of a TupleFile in order. */
+    class Reader {
+        private final DataInputStream in;
+        private final byte[] record = new byte[td.getSize()];
+        private int left = size;
+
+        private Reader() throws IOException {
+            in = left == 0 ? null : new DataInputStream(
+                new BufferedInputStream(new FileInputStream(file)));
+        }
+
+        /** Returns the next tuple, or null after the last one. */
+        Tuple next() throws IOException {
+            if (left == 0)
+                return null;
+            in.readFully(record);
+            left--;
+            ByteBuffer buf = ByteBuffer.wrap(record);
+            Tuple t = new Tuple(td);
+            int off = 0;
+            try {
+                for (int i = 0; i < td.numFields(); i++) {
+                    Type type = td.getFieldType(i);
+                    t.setField(i, type.parse(buf, off));
+                    off += type.getLen();
+                }
+            } catch (ParseException e) {
+                throw new IOException("bad tuple in " + file + ": " + e.getMessage());
+            }
+            return t;
+        }
+
+        void close() throws IOException {
+            if (in != null)
+                in.close();
+        }
+    }
+}
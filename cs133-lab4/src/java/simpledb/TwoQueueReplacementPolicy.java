@@ -0,0 +1,94 @@
+package simpledb;
+
+import java.util.*;
+
+/**
+ * 2Q page replacement (Johnson and Shasha, VLDB '94).
+ * <p>
+ * Newly loaded pages go into a FIFO queue, A1in.  Pages evicted from A1in
+ * are remembered (by id only) in a ghost queue, A1out.  A page that is
+ * loaded again while it is still in A1out has proven itself hot and goes
+ * into Am, which is managed as an LRU list.  Victims come from A1in while it
+ * holds more than a quarter of the pool, so a long sequential scan only ever
+ * cycles through A1in and leaves the pages in Am alone.  All bookkeeping is
+ * constant time per access.
+ *
+ * @Threadsafe
+ */
+public class TwoQueueReplacementPolicy implements ReplacementPolicy {
+
+    private final LinkedHashSet<PageId> a1in = new LinkedHashSet<PageId>();
+    private final LinkedHashSet<PageId> a1out = new LinkedHashSet<PageId>();
+    private final LinkedHashSet<PageId> am = new LinkedHashSet<PageId>();
+    private int kin = 1;
+    private int kout = 1;
+
+    public synchronized void setCapacity(int numPages) {
+        kin = Math.max(1, numPages / 4);
+        kout = Math.max(1, numPages / 2);
+        trimGhosts();
+    }
+
+    public synchronized void pageAdded(PageId pid) {
+        if (a1in.contains(pid) || am.contains(pid))
+            return;
+        if (a1out.remove(pid))
+            am.add(pid);
+        else
+            a1in.add(pid);
+    }
+
+    public synchronized void pageAccessed(PageId pid) {
+        // hits in A1in are deliberately ignored: they are usually correlated
+        // references made by the same operator shortly after the load
+        if (am.remove(pid))
+            am.add(pid);
+    }
+
+    public synchronized void pageRemoved(PageId pid) {
+        if (a1in.remove(pid)) {
+            a1out.add(pid);
+            trimGhosts();
+        } else {
+            am.remove(pid);
+        }
+    }
+
+    public synchronized PageId chooseVictim(Evictable evictable) {
+        PageId victim = null;
+        if (a1in.size() > kin)
+            victim = firstEvictable(a1in, evictable);
+        if (victim == null)
+            victim = firstEvictable(am, evictable);
+        if (victim == null)
+            victim = firstEvictable(a1in, evictable);
+        return victim;
+    }
+
+    /** Am from most to least recently used, then A1in from newest to oldest. */
+    public synchronized List<PageId> residentPages() {
+        List<PageId> pages = new ArrayList<PageId>(am.size() + a1in.size());
+        pages.addAll(am);
+        Collections.reverse(pages);
+        List<PageId> in = new ArrayList<PageId>(a1in);
+        Collections.reverse(in);
+        pages.addAll(in);
+        return pages;
+    }
+
+    private PageId firstEvictable(LinkedHashSet<PageId> queue, Evictable evictable) {
+        for (PageId pid : queue) {
+            if (evictable.canEvict(pid))
+                return pid;
+        }
+        return null;
+    }
+
+    private void trimGhosts() {
+        Iterator<PageId> it = a1out.iterator();
+        while (a1out.size() > kout && it.hasNext()) {
+            it.next();
+            it.remove();
+        }
+    }
+}
@@ -2,6 +2,7 @@ package simpledb;
 
 import java.text.ParseException;
 import java.io.*;
+import java.nio.ByteBuffer;
 
 /**
  * Class representing a type in SimpleDB.
@@ -24,6 +25,11 @@ public enum Type implements Serializable {
             }
         }
 
+        @Override
+        public Field parse(ByteBuffer buf, int offset) {
+            return new IntField(buf.getInt(offset));
+        }
+
     }, STRING_TYPE() {
         @Override
         public int getLen() {
@@ -42,6 +48,17 @@ public enum Type implements Serializable {
                 throw new ParseException("couldn't parse", 0);
             }
         }
+
+        @Override
+        public Field parse(ByteBuffer buf, int offset) throws ParseException {
+            int strLen = buf.getInt(offset);
+            if (strLen < 0 || strLen > STRING_LEN)
+                throw new ParseException("couldn't parse", offset);
+            byte bs[] = new byte[strLen];
+            for (int i = 0; i < strLen; i++)
+                bs[i] = buf.get(offset + 4 + i);
+            return new StringField(new String(bs), STRING_LEN);
+        }
     };
     
     public static final int STRING_LEN = 128;
@@ -60,4 +77,15 @@ public enum Type implements Serializable {
    */
     public abstract Field parse(DataInputStream dis) throws ParseException;
 
+  /**
+   * @return a Field object of the same type as this object that has contents
+   *   read from buf at the given absolute offset.  The position of buf is
+   *   not changed, so one buffer may be read by several threads at once.
+   * @param buf The buffer to read from
+   * @param offset The index in buf of the first byte of the field
+   * @throws ParseException if the bytes at offset are not of the
+   *   appropriate type.
+   */
+    public abstract Field parse(ByteBuffer buf, int offset) throws ParseException;
+
 }
@@ -107,6 +107,8 @@ public class Utility {
         FileOutputStream fos = new FileOutputStream(f);
         fos.write(new byte[0]);
         fos.close();
+        // and forget the free space of whatever table was there before
+        FreeSpaceMap.fileFor(f).delete();
 
         HeapFile hf = openHeapFile(cols, f);
         HeapPageId pid = new HeapPageId(hf.getId(), 0);
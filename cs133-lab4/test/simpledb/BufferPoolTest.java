@@ -0,0 +1,285 @@
+package simpledb;
+
+import java.io.File;
+import java.util.Iterator;
+
+import org.junit.Before;
+import org.junit.Test;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import junit.framework.JUnit4TestAdapter;
+
+public class BufferPoolTest extends TestUtil.CreateHeapFile {
+  private PageId p0, p1, p2;
+  private BufferPool bp;
+
+  /**
+   * Set up initial resources for each unit test.
+   */
+  @Before public void setUp() throws Exception {
+    super.setUp();
+    bp = Database.resetBufferPool(BufferPool.DEFAULT_PAGES);
+
+    // three full pages on disk
+    TransactionId tid = new TransactionId();
+    for (int i = 0; i < 1025; ++i) {
+      empty.insertTuple(tid, Utility.getHeapTuple(i, 2));
+    }
+    assertEquals(3, empty.numPages());
+
+    this.p0 = new HeapPageId(empty.getId(), 0);
+    this.p1 = new HeapPageId(empty.getId(), 1);
+    this.p2 = new HeapPageId(empty.getId(), 2);
+
+    bp.getPage(tid, p0, Permissions.READ_WRITE).markDirty(true, tid);
+    bp.getPage(tid, p1, Permissions.READ_WRITE).markDirty(true, tid);
+    bp.getPage(tid, p2, Permissions.READ_WRITE).markDirty(true, tid);
+    bp.flushAllPages();
+    bp = Database.resetBufferPool(BufferPool.DEFAULT_PAGES);
+  }
+
+  /**
+   * Shrinking evicts clean pages at once, and growing again keeps the
+   * pages that are left.
+   */
+  @Test public void shrinkAndGrow() throws Exception {
+    TransactionId tid = new TransactionId();
+    bp.getPage(tid, p0, Permissions.READ_ONLY);
+    bp.getPage(tid, p1, Permissions.READ_ONLY);
+    bp.getPage(tid, p2, Permissions.READ_ONLY);
+    bp.getPage(tid, p2, Permissions.READ_ONLY);
+
+    assertEquals(0, bp.resize(1));
+    BufferPool.Stats stats = bp.getStats();
+    assertEquals(1, stats.capacity);
+    assertEquals(1, stats.resident);
+    assertEquals(2, stats.evictions);
+    assertEquals(3, stats.misses);
+    assertEquals(1, stats.hits);
+
+    bp.resize(10);
+    assertEquals(10, bp.getNumPages());
+    assertEquals(1, bp.getStats().resident);
+  }
+
+  /**
+   * Shrinking leaves dirty and pinned pages in the pool; it gets down to
+   * the new size once they are committed and unpinned.
+   */
+  @Test public void shrinkRespectsDirtyAndPinnedPages() throws Exception {
+    TransactionId tid1 = new TransactionId();
+    TransactionId tid2 = new TransactionId();
+    bp.getPage(tid1, p0, Permissions.READ_WRITE).markDirty(true, tid1);
+    bp.getPage(tid2, p1, Permissions.READ_ONLY);
+    bp.pinPage(p1);
+    bp.getPage(tid2, p2, Permissions.READ_ONLY);
+
+    assertEquals(1, bp.resize(1));
+    BufferPool.Stats stats = bp.getStats();
+    assertEquals(2, stats.resident);
+    assertEquals(1, stats.dirty);
+    assertEquals(1, stats.pinned);
+
+    bp.unpinPage(p1);
+    bp.transactionComplete(tid1, true);
+    bp.getPage(tid2, p2, Permissions.READ_ONLY);
+    assertEquals(1, bp.getStats().resident);
+  }
+
+  /**
+   * The pages saved at shutdown are back in a new pool after prefetching.
+   */
+  @Test public void hotPagesSurviveRestart() throws Exception {
+    File hot = File.createTempFile("hotpages", "");
+    hot.deleteOnExit();
+    TransactionId tid = new TransactionId();
+    bp.getPage(tid, p0, Permissions.READ_ONLY);
+    bp.getPage(tid, p2, Permissions.READ_ONLY);
+    bp.setHotPagesFile(hot);
+    bp.saveHotPages();
+
+    bp = Database.resetBufferPool(BufferPool.DEFAULT_PAGES);
+    bp.setHotPagesFile(hot);
+    assertEquals(2, bp.prefetchHotPages());
+    bp.getPage(tid, p0, Permissions.READ_ONLY);
+    bp.getPage(tid, p2, Permissions.READ_ONLY);
+    assertEquals(2, bp.getStats().hits);
+    assertEquals(0, bp.getStats().misses);
+  }
+
+  /**
+   * A scan through a ring uses the pages already in the pool and leaves
+   * the pool unchanged.
+   */
+  @Test public void scanRing() throws Exception {
+    TransactionId tid = new TransactionId();
+    bp.getPage(tid, p1, Permissions.READ_ONLY);
+
+    HeapFileIterator it = (HeapFileIterator) empty.iterator(tid);
+    it.setScanRing(true);
+    it.open();
+    int n = 0;
+    while (it.hasNext()) {
+      it.next();
+      n++;
+    }
+    it.close();
+    assertEquals(1025, n);
+
+    BufferPool.Stats stats = bp.getStats();
+    assertEquals(1, stats.resident);
+    assertEquals(1, stats.hits);
+    assertEquals(3, stats.misses);
+  }
+
+  /**
+   * Once a scan has read pages in order, the pages ahead of it are read
+   * into the pool before it asks for them.
+   */
+  @Test public void readAhead() throws Exception {
+    TransactionId tid = new TransactionId();
+    HeapFileIterator it = (HeapFileIterator) empty.iterator(tid);
+    it.open();
+    int n = 0;
+    while (it.hasNext()) {
+      it.next();
+      n++;
+    }
+    it.close();
+    assertEquals(1025, n);
+
+    // pages 0 and 1 were read by the scan, page 2 ahead of it
+    BufferPool.Stats stats = bp.getStats();
+    assertEquals(3, stats.resident);
+    assertEquals(2, stats.misses);
+    assertEquals(1, stats.hits);
+  }
+
+  /**
+   * A page staged in a scan ring is dropped once its file is written.
+   */
+  @Test public void stagedPageInvalidatedByWrite() throws Exception {
+    BufferPool.ScanRing ring = new BufferPool.ScanRing(BufferPool.SCAN_RING_PAGES);
+    Page p = empty.readPage(p1);
+    ring.stage(p, empty, empty.writeCount());
+    assertSame(p, ring.takeStaged(p1));
+    assertNull(ring.takeStaged(p1));
+
+    ring.stage(p, empty, empty.writeCount());
+    empty.writePage(empty.readPage(p2));
+    assertNull(ring.takeStaged(p1));
+  }
+
+  /**
+   * Staged pages the scan never takes, because they were in the pool, are
+   * dropped once the scan is past them.
+   */
+  @Test public void stagedPagesBehindScanDropped() throws Exception {
+    TransactionId tid = new TransactionId();
+    bp.getPage(tid, p0, Permissions.READ_ONLY);
+    BufferPool.ScanRing ring = new BufferPool.ScanRing(BufferPool.SCAN_RING_PAGES);
+    ring.stage(empty.readPage(p0), empty, empty.writeCount());
+    ring.stage(empty.readPage(p1), empty, empty.writeCount());
+
+    bp.getScanPage(tid, p0, ring);
+    assertEquals(2, ring.stagedPages());
+    bp.getScanPage(tid, p1, ring);
+    assertEquals(0, ring.stagedPages());
+    bp.transactionComplete(tid);
+  }
+
+  /**
+   * A scan through a ring sees the changes of its own transaction, even
+   * to pages the pool has spilled and the read-ahead has staged older
+   * copies of.
+   */
+  @Test public void scanRingSeesSpilledPages() throws Exception {
+    bp = Database.resetBufferPool(3);
+    TransactionId tid = new TransactionId();
+    for (int i = 0; i < 4000; ++i) {
+      bp.insertTuple(tid, empty.getId(), Utility.getHeapTuple(i, 2));
+    }
+    assertTrue(bp.getStats().spilled > 0);
+
+    HeapFileIterator it = (HeapFileIterator) empty.iterator(tid);
+    it.setScanRing(true);
+    it.open();
+    int n = 0;
+    while (it.hasNext()) {
+      it.next();
+      n++;
+    }
+    it.close();
+    assertEquals(5025, n);
+    bp.transactionComplete(tid, false);
+  }
+
+  /** Returns the number of tuples in the file on disk. */
+  private int onDisk() {
+    int n = 0;
+    for (int i = 0; i < empty.numPages(); i++) {
+      Iterator<Tuple> it =
+          ((HeapPage) empty.readPage(new HeapPageId(empty.getId(), i))).iterator();
+      for (; it.hasNext(); it.next())
+        n++;
+    }
+    return n;
+  }
+
+  /** Returns the number of tuples tid sees through the pool. */
+  private int inPool(TransactionId tid) throws Exception {
+    DbFileIterator it = empty.iterator(tid);
+    it.open();
+    int n = 0;
+    for (; it.hasNext(); it.next())
+      n++;
+    it.close();
+    return n;
+  }
+
+  /**
+   * Writing a running transaction's pages doesn't make them the committed
+   * versions: an abort puts the committed pages back, in the pool and on
+   * disk.
+   */
+  @Test public void abortAfterFlushPages() throws Exception {
+    TransactionId tid = new TransactionId();
+    bp.insertTuple(tid, empty.getId(), Utility.getHeapTuple(5000, 2));
+    bp.flushPages(tid);
+    assertEquals(1026, onDisk());
+
+    bp.transactionComplete(tid, false);
+    assertEquals(1025, onDisk());
+    TransactionId reader = new TransactionId();
+    assertEquals(1025, inPool(reader));
+    bp.transactionComplete(reader);
+  }
+
+  /**
+   * An abort puts back the committed version of a page written for it
+   * even once the page has left the pool.
+   */
+  @Test public void abortAfterStolenPageEvicted() throws Exception {
+    TransactionId tid = new TransactionId();
+    bp.insertTuple(tid, empty.getId(), Utility.getHeapTuple(5000, 2));
+    bp.flushPages(tid);
+    bp.resize(1);
+    assertEquals(1, bp.getStats().resident);
+
+    bp.transactionComplete(tid, false);
+    assertEquals(1025, onDisk());
+    TransactionId reader = new TransactionId();
+    assertEquals(1025, inPool(reader));
+    bp.transactionComplete(reader);
+  }
+
+  /**
+   * JUnit suite target
+   */
+  public static junit.framework.Test suite() {
+    return new JUnit4TestAdapter(BufferPoolTest.class);
+  }
+
+}
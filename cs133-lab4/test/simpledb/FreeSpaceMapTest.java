@@ -0,0 +1,115 @@
+package simpledb;
+
+import java.io.File;
+
+import org.junit.Before;
+import org.junit.After;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+import junit.framework.JUnit4TestAdapter;
+
+public class FreeSpaceMapTest {
+
+    private File dataFile;
+
+    @Before public void setUp() throws Exception {
+        dataFile = File.createTempFile("fsm", ".dat");
+        dataFile.deleteOnExit();
+        FreeSpaceMap.fileFor(dataFile).deleteOnExit();
+    }
+
+    @After public void tearDown() {
+        FreeSpaceMap.fileFor(dataFile).delete();
+    }
+
+    /**
+     * Unit test for FreeSpaceMap.findPage() and update()
+     */
+    @Test public void findPage() throws Exception {
+        FreeSpaceMap fsm = new FreeSpaceMap(dataFile, 100, 3);
+        // nothing is known yet, so every page might have space
+        assertEquals(0, fsm.findPage());
+        assertFalse(fsm.isVerified(0));
+
+        fsm.update(0, 0);
+        assertTrue(fsm.isVerified(0));
+        assertEquals(1, fsm.findPage());
+        fsm.update(1, 0);
+        fsm.update(2, 0);
+        assertEquals(-1, fsm.findPage());
+
+        // a page appended to the file, and a delete on a full page
+        fsm.update(3, 100);
+        assertEquals(3, fsm.findPage());
+        fsm.update(3, 0);
+        fsm.update(1, 1);
+        assertEquals(1, fsm.findPage());
+    }
+
+    /**
+     * The side file is read back, but only as a hint.
+     */
+    @Test public void persistence() throws Exception {
+        FreeSpaceMap fsm = new FreeSpaceMap(dataFile, 100, 2);
+        fsm.update(0, 0);
+        fsm.update(2, 50);
+        fsm.update(1, 0);
+        fsm.close();
+
+        FreeSpaceMap reopened = new FreeSpaceMap(dataFile, 100, 3);
+        assertEquals(2, reopened.findPage());
+        assertFalse(reopened.isVerified(2));
+
+        // a side file for a different number of pages is ignored
+        FreeSpaceMap stale = new FreeSpaceMap(dataFile, 100, 5);
+        assertEquals(0, stale.findPage());
+    }
+
+    /**
+     * Closing the map closes the side file; a map opened again reads it.
+     */
+    @Test public void close() throws Exception {
+        FreeSpaceMap fsm = new FreeSpaceMap(dataFile, 100, 2);
+        fsm.update(0, 0);
+        fsm.close();
+        assertEquals(1, new FreeSpaceMap(dataFile, 100, 2).findPage());
+    }
+
+    /**
+     * A side file that wasn't closed, or whose data file has changed since,
+     * is ignored.
+     */
+    @Test public void staleSideFile() throws Exception {
+        FreeSpaceMap fsm = new FreeSpaceMap(dataFile, 100, 2);
+        fsm.update(0, 0);
+        assertEquals(0, new FreeSpaceMap(dataFile, 100, 2).findPage());
+        fsm.close();
+        assertEquals(1, new FreeSpaceMap(dataFile, 100, 2).findPage());
+
+        // as if the data file had been rewritten since
+        assertTrue(dataFile.setLastModified(dataFile.lastModified() + 10000));
+        assertEquals(0, new FreeSpaceMap(dataFile, 100, 2).findPage());
+    }
+
+    /**
+     * A page that is no longer verified is searched again first.
+     */
+    @Test public void unverify() throws Exception {
+        FreeSpaceMap fsm = new FreeSpaceMap(dataFile, 100, 3);
+        fsm.update(0, 0);
+        fsm.update(1, 0);
+        assertEquals(2, fsm.findPage());
+
+        fsm.unverify(0);
+        assertFalse(fsm.isVerified(0));
+        assertEquals(0, fsm.findPage());
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(FreeSpaceMapTest.class);
+    }
+}
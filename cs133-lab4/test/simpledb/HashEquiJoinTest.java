@@ -0,0 +1,166 @@
+package simpledb;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import simpledb.systemtest.SimpleDbTestBase;
+
+public class HashEquiJoinTest extends SimpleDbTestBase {
+
+  int width1 = 2;
+  int width2 = 3;
+  DbIterator scan1;
+  DbIterator scan2;
+  DbIterator eqJoin;
+
+  /**
+   * Initialize each unit test
+   */
+  @Before public void createTupleLists() throws Exception {
+    this.scan1 = TestUtil.createTupleList(width1,
+        new int[] { 1, 2,
+                    3, 4,
+                    5, 6,
+                    7, 8 });
+    this.scan2 = TestUtil.createTupleList(width2,
+        new int[] { 1, 2, 3,
+                    2, 3, 4,
+                    3, 4, 5,
+                    4, 5, 6,
+                    5, 6, 7 });
+    this.eqJoin = TestUtil.createTupleList(width1 + width2,
+        new int[] { 1, 2, 1, 2, 3,
+                    3, 4, 3, 4, 5,
+                    5, 6, 5, 6, 7 });
+  }
+
+  /**
+   * Unit test for HashEquiJoin.rewind()
+   */
+  @Test public void rewind() throws Exception {
+    JoinPredicate pred = new JoinPredicate(0, Predicate.Op.EQUALS, 0);
+    HashEquiJoin op = new HashEquiJoin(pred, scan1, scan2);
+    op.open();
+    while (op.hasNext()) {
+      assertNotNull(op.next());
+    }
+    assertTrue(TestUtil.checkExhausted(op));
+    op.rewind();
+
+    eqJoin.open();
+    TestUtil.matchAllTuples(eqJoin, op);
+  }
+
+  /**
+   * Unit test for HashEquiJoin.getNext() on int keys
+   */
+  @Test public void eqJoin() throws Exception {
+    JoinPredicate pred = new JoinPredicate(0, Predicate.Op.EQUALS, 0);
+    HashEquiJoin op = new HashEquiJoin(pred, scan1, scan2);
+    op.open();
+    eqJoin.open();
+    TestUtil.matchAllTuples(eqJoin, op);
+  }
+
+  /**
+   * Unit test for HashEquiJoin.getNext() on string keys
+   */
+  @Test public void stringJoin() throws Exception {
+    DbIterator left = TestUtil.createTupleList(2,
+        new Object[] { "a", 1, "b", 2, "c", 3 });
+    DbIterator right = TestUtil.createTupleList(2,
+        new Object[] { "c", 30, "a", 10, "d", 40 });
+    DbIterator expected = TestUtil.createTupleList(4,
+        new Object[] { "a", 1, "a", 10, "c", 3, "c", 30 });
+    JoinPredicate pred = new JoinPredicate(0, Predicate.Op.EQUALS, 0);
+    HashEquiJoin op = new HashEquiJoin(pred, left, right);
+    op.open();
+    expected.open();
+    TestUtil.matchAllTuples(expected, op);
+  }
+
+  /**
+   * Every build row with a matching key is joined, when many rows share
+   * each key.
+   */
+  @Test public void duplicateKeys() throws Exception {
+    int[] left = new int[2 * 1000];
+    for (int i = 0; i < 1000; i++) {
+      left[2 * i] = i % 7;
+      left[2 * i + 1] = i;
+    }
+    int[] right = new int[10];
+    for (int i = 0; i < 10; i++)
+      right[i] = i;
+    JoinPredicate pred = new JoinPredicate(0, Predicate.Op.EQUALS, 0);
+    HashEquiJoin op = new HashEquiJoin(pred,
+        TestUtil.createTupleList(2, left), TestUtil.createTupleList(1, right));
+    op.open();
+    assertEquals(1000, countJoined(op));
+  }
+
+  private static int countJoined(HashEquiJoin op) throws Exception {
+    int n = 0;
+    while (op.hasNext()) {
+      Tuple t = op.next();
+      assertEquals(t.getField(0), t.getField(2));
+      n++;
+    }
+    return n;
+  }
+
+  /**
+   * A build side larger than MAP_SIZE is partitioned to disk and still
+   * joined in full, also after a rewind.
+   */
+  @Test public void partitionedJoin() throws Exception {
+    int rows = 3 * HashEquiJoin.MAP_SIZE;
+    int[] left = new int[2 * rows];
+    int[] right = new int[rows];
+    for (int i = 0; i < rows; i++) {
+      left[2 * i] = i;
+      left[2 * i + 1] = -i;
+      right[i] = 2 * i;
+    }
+    JoinPredicate pred = new JoinPredicate(0, Predicate.Op.EQUALS, 0);
+    HashEquiJoin op = new HashEquiJoin(pred,
+        TestUtil.createTupleList(2, left), TestUtil.createTupleList(1, right));
+    op.open();
+    assertEquals(rows / 2, countJoined(op));
+    op.rewind();
+    assertEquals(rows / 2, countJoined(op));
+    op.close();
+  }
+
+  /**
+   * A partition that doesn't fit in memory either is joined a chunk at
+   * a time.
+   */
+  @Test public void oversizedPartition() throws Exception {
+    int rows = 2 * HashEquiJoin.MAP_SIZE + 7;
+    int[] left = new int[2 * rows];
+    for (int i = 0; i < rows; i++) {
+      left[2 * i] = 5;
+      left[2 * i + 1] = i;
+    }
+    JoinPredicate pred = new JoinPredicate(0, Predicate.Op.EQUALS, 0);
+    HashEquiJoin op = new HashEquiJoin(pred,
+        TestUtil.createTupleList(2, left),
+        TestUtil.createTupleList(1, new int[] { 4, 5, 6, 5 }));
+    op.open();
+    assertEquals(2 * rows, countJoined(op));
+    op.close();
+  }
+
+  /**
+   * JUnit suite target
+   */
+  public static junit.framework.Test suite() {
+    return new JUnit4TestAdapter(HashEquiJoinTest.class);
+  }
+}
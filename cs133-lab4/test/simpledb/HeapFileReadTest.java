@@ -85,6 +85,60 @@ public class HeapFileReadTest extends SimpleDbTestBase {
         assertFalse(page.isSlotUsed(20));
     }
 
+    /**
+     * Unit test for HeapFile.readPage() on a memory-mapped file, including
+     * a page appended after the file was first mapped
+     */
+    @Test
+    public void readPageMapped() throws Exception {
+        HeapFile mapped = new HeapFile(hf.getFile(), td, true);
+        assertTrue(mapped.isMapped());
+        HeapPageId pid = new HeapPageId(hf.getId(), 0);
+        HeapPage page = (HeapPage) mapped.readPage(pid);
+        assertEquals(484, page.getNumEmptySlots());
+        assertTrue(Arrays.equals(((HeapPage) hf.readPage(pid)).getPageData(),
+                page.getPageData()));
+
+        HeapPageId next = new HeapPageId(hf.getId(), 1);
+        try {
+            mapped.readPage(next);
+            fail("expected exception");
+        } catch (IllegalArgumentException e) {
+        }
+        HeapPage grown = new HeapPage(next, HeapPage.createEmptyPageData());
+        grown.insertTuple(page.iterator().next());
+        mapped.writePage(grown);
+        assertEquals(503, ((HeapPage) mapped.readPage(next)).getNumEmptySlots());
+    }
+
+    /**
+     * A page read through the mapping keeps its before image and the
+     * tuples it handed out when the page is changed and then written
+     */
+    @Test
+    public void mappedPageSurvivesWrite() throws Exception {
+        HeapFile mapped = new HeapFile(hf.getFile(), td, true);
+        HeapPageId pid = new HeapPageId(hf.getId(), 0);
+        HeapPage page = (HeapPage) mapped.readPage(pid);
+        byte[] original = page.getPageData();
+        Iterator<Tuple> it = page.iterator();
+        it.next();
+        Tuple second = it.next();
+        Field value = ((HeapPage) hf.readPage(pid)).getTuple(1).getField(0);
+        HeapPage unmodified = page.getBeforeImage();
+
+        // overwrite the second tuple on disk, through another copy
+        HeapPage other = (HeapPage) mapped.readPage(pid);
+        other.deleteTuple(other.getTuple(1));
+        other.insertTuple(Utility.getHeapTuple(new int[] { -1, -1 }));
+        page.deleteTuple(page.iterator().next());
+        mapped.writePage(other);
+
+        assertEquals(value, second.getField(0));
+        assertTrue(Arrays.equals(original, unmodified.getPageData()));
+        assertTrue(Arrays.equals(original, page.getBeforeImage().getPageData()));
+    }
+
     @Test
     public void testIteratorBasic() throws Exception {
         HeapFile smallFile = SystemTestUtil.createRandomHeapFile(2, 3, null,
@@ -1,5 +1,7 @@
 package simpledb;
 
+import java.io.File;
+
 import org.junit.After;
 import org.junit.Before;
 import org.junit.Test;
@@ -43,6 +45,43 @@ public class HeapFileWriteTest extends TestUtil.CreateHeapFile {
         assertEquals(3, empty.numPages());
     }
 
+    /**
+     * The pages an aborted insert filled are used again by later inserts,
+     * rather than growing the file.
+     */
+    @Test public void abortedInsertLeavesRoom() throws Exception {
+        BufferPool bp = Database.getBufferPool();
+        TransactionId aborted = new TransactionId();
+        for (int i = 0; i < 1008; ++i)
+            bp.insertTuple(aborted, empty.getId(), Utility.getHeapTuple(i, 2));
+        assertEquals(2, empty.numPages());
+        bp.transactionComplete(aborted, false);
+
+        for (int i = 0; i < 1008; ++i)
+            bp.insertTuple(tid, empty.getId(), Utility.getHeapTuple(i, 2));
+        assertEquals(2, empty.numPages());
+    }
+
+    /**
+     * A HeapFile doesn't create its file until a page is written to it,
+     * and opens the file again when used after it is closed.
+     */
+    @Test public void openedOnDemand() throws Exception {
+        File f = File.createTempFile("heapfile", ".dat");
+        assertTrue(f.delete());
+        f.deleteOnExit();
+        HeapFile hf = new HeapFile(f, Utility.getTupleDesc(2));
+        Database.getCatalog().addTable(hf);
+        assertEquals(0, hf.numPages());
+        assertFalse(f.exists());
+
+        HeapPageId pid = new HeapPageId(hf.getId(), 0);
+        hf.writePage(new HeapPage(pid, HeapPage.createEmptyPageData()));
+        assertTrue(f.exists());
+        hf.close();
+        assertEquals(504, ((HeapPage) hf.readPage(pid)).getNumEmptySlots());
+    }
+
     /**
      * JUnit suite target
      */
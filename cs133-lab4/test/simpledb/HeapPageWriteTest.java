@@ -4,6 +4,7 @@ import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertTrue;
 
 import java.io.IOException;
+import java.util.Arrays;
 import java.util.Iterator;
 import java.util.LinkedList;
 
@@ -126,6 +127,29 @@ public class HeapPageWriteTest extends SimpleDbTestBase {
         }
     }
 
+    /**
+     * Unit test for HeapPage.getBeforeImage() and setBeforeImage()
+     */
+    @Test public void beforeImage() throws Exception {
+        byte[] data = HeapPageReadTest.EXAMPLE_DATA.clone();
+        HeapPage page = new HeapPage(pid, data);
+        assertTrue(Arrays.equals(data, page.getBeforeImage().getPageData()));
+
+        Tuple first = page.iterator().next();
+        page.deleteTuple(first);
+        page.insertTuple(Utility.getHeapTuple(1234, 2));
+        int free = page.getNumEmptySlots();
+
+        // the source bytes and the before image are untouched
+        assertTrue(Arrays.equals(HeapPageReadTest.EXAMPLE_DATA, data));
+        assertTrue(Arrays.equals(data, page.getBeforeImage().getPageData()));
+        assertTrue(TestUtil.compareTuples(first, page.getBeforeImage().iterator().next()));
+
+        page.setBeforeImage();
+        assertEquals(free, page.getBeforeImage().getNumEmptySlots());
+        assertTrue(Arrays.equals(page.getPageData(), page.getBeforeImage().getPageData()));
+    }
+
     /**
      * JUnit suite target
      */
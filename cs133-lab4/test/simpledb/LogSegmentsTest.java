@@ -0,0 +1,106 @@
+package simpledb;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+
+import org.junit.Before;
+import org.junit.After;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+import junit.framework.JUnit4TestAdapter;
+
+public class LogSegmentsTest {
+
+    private static final long SEGMENT = 64;
+
+    private File manifest;
+    private LogSegments log;
+
+    @Before public void setUp() throws Exception {
+        manifest = File.createTempFile("segs", ".log");
+        manifest.deleteOnExit();
+        log = new LogSegments(manifest, SEGMENT);
+        log.reset();
+    }
+
+    @After public void tearDown() throws Exception {
+        log.reset();
+        log.close();
+        manifest.delete();
+    }
+
+    private static byte[] bytes(int n, int seed) {
+        byte[] b = new byte[n];
+        for (int i = 0; i < n; i++)
+            b[i] = (byte) (seed + i);
+        return b;
+    }
+
+    /**
+     * Writes that cross segment boundaries read back as one stream.
+     */
+    @Test public void writeAcrossSegments() throws Exception {
+        byte[] data = bytes(200, 3);
+        log.write(ByteBuffer.wrap(data, 0, 50), 0);
+        log.write(ByteBuffer.wrap(data, 50, 150), 50);
+        assertEquals(200, log.end());
+        assertTrue(log.segmentFile(3).exists());
+
+        byte[] back = new byte[200];
+        new DataInputStream(log.openStream(0)).readFully(back);
+        assertArrayEquals(data, back);
+        assertEquals(-1, log.openStream(200).read());
+    }
+
+    /**
+     * Truncation drops only whole segments before the given LSN, and the
+     * manifest survives reopening.
+     */
+    @Test public void truncate() throws Exception {
+        byte[] data = bytes(200, 5);
+        log.write(ByteBuffer.wrap(data), 0);
+        log.setCheckpoint(150);
+
+        assertEquals(2, log.truncate(130));
+        assertFalse(log.segmentFile(0).exists());
+        assertFalse(log.segmentFile(1).exists());
+        assertTrue(log.segmentFile(2).exists());
+        assertEquals(0, log.truncate(100));
+
+        LogSegments reopened = new LogSegments(manifest, SEGMENT);
+        reopened.load();
+        assertEquals(150, reopened.checkpoint());
+        assertEquals(130, reopened.first());
+        assertEquals(200, reopened.end());
+        DataInputStream in = new DataInputStream(reopened.openStream(130));
+        for (int i = 130; i < 200; i++)
+            assertEquals(data[i], in.readByte());
+        reopened.close();
+    }
+
+    /**
+     * With an archive directory, truncated segments are moved, not deleted.
+     */
+    @Test public void archive() throws Exception {
+        File dir = File.createTempFile("archive", "");
+        dir.delete();
+        dir.mkdir();
+        log.setArchiveDirectory(dir);
+        log.write(ByteBuffer.wrap(bytes(100, 7)), 0);
+
+        assertEquals(1, log.truncate(SEGMENT));
+        File archived = new File(dir, log.segmentFile(0).getName());
+        assertTrue(archived.exists());
+        assertEquals(SEGMENT, archived.length());
+        archived.delete();
+        dir.delete();
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(LogSegmentsTest.class);
+    }
+}
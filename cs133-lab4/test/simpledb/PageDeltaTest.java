@@ -0,0 +1,70 @@
+package simpledb;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.*;
+import java.util.Arrays;
+
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import simpledb.TestUtil.SkeletonFile;
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+
+public class PageDeltaTest extends SimpleDbTestBase {
+
+    private HeapPageId pid;
+
+    /**
+     * Set up initial resources for each unit test.
+     */
+    @Before public void addTable() throws IOException {
+        this.pid = new HeapPageId(-1, -1);
+        Database.getCatalog().addTable(new SkeletonFile(-1, Utility.getTupleDesc(2)), SystemTestUtil.getUUID());
+    }
+
+    /**
+     * A one-tuple insert gives a delta of a header byte and a slot, and the
+     * delta redoes and undoes the insert exactly.
+     */
+    @Test public void insertDelta() throws Exception {
+        HeapPage before = new HeapPage(pid, HeapPageReadTest.EXAMPLE_DATA);
+        HeapPage after = new HeapPage(pid, HeapPageReadTest.EXAMPLE_DATA);
+        after.insertTuple(Utility.getHeapTuple(new int[] { 7, 8 }));
+
+        PageDelta delta = PageDelta.diff(before, after);
+        assertFalse(delta.isEmpty());
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        delta.write(new DataOutputStream(bytes));
+        assertTrue(bytes.size() < 100);
+
+        PageDelta read = PageDelta.read(new DataInputStream(
+                new ByteArrayInputStream(bytes.toByteArray())));
+        assertEquals(pid, read.pid);
+        byte[] data = before.getPageData();
+        read.redo(data);
+        assertTrue(Arrays.equals(after.getPageData(), data));
+        read.undo(data);
+        assertTrue(Arrays.equals(before.getPageData(), data));
+    }
+
+    /**
+     * Identical images give an empty delta.
+     */
+    @Test public void unchanged() throws Exception {
+        HeapPage page = new HeapPage(pid, HeapPageReadTest.EXAMPLE_DATA);
+        assertTrue(PageDelta.diff(page, page).isEmpty());
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(PageDeltaTest.class);
+    }
+}
@@ -0,0 +1,154 @@
+package simpledb;
+
+import java.util.*;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+import junit.framework.JUnit4TestAdapter;
+
+public class ReplacementPolicyTest {
+
+    private static final int TABLE = 7;
+
+    /** Allows every page except those in the given set to be evicted. */
+    private static ReplacementPolicy.Evictable allBut(final Set<PageId> pinned) {
+        return new ReplacementPolicy.Evictable() {
+            public boolean canEvict(PageId pid) {
+                return !pinned.contains(pid);
+            }
+        };
+    }
+
+    private static final ReplacementPolicy.Evictable ANY = allBut(new HashSet<PageId>());
+
+    private static PageId page(int n) {
+        return new HeapPageId(TABLE, n);
+    }
+
+    /**
+     * Fill a policy of the given capacity, evicting as needed, and return
+     * the set of pages it considers resident.
+     */
+    private static Set<PageId> load(ReplacementPolicy policy, Set<PageId> resident,
+            int capacity, int pgno) {
+        PageId pid = page(pgno);
+        if (resident.contains(pid)) {
+            policy.pageAccessed(pid);
+            return resident;
+        }
+        if (resident.size() >= capacity) {
+            PageId victim = policy.chooseVictim(ANY);
+            assertNotNull(victim);
+            assertTrue(resident.remove(victim));
+            policy.pageRemoved(victim);
+        }
+        resident.add(pid);
+        policy.pageAdded(pid);
+        return resident;
+    }
+
+    /**
+     * Unit test for ClockReplacementPolicy: referenced pages get a second chance.
+     */
+    @Test public void clockSecondChance() {
+        ReplacementPolicy clock = new ClockReplacementPolicy();
+        clock.setCapacity(3);
+        clock.pageAdded(page(0));
+        clock.pageAdded(page(1));
+        clock.pageAdded(page(2));
+        clock.pageAccessed(page(0));
+        clock.pageAccessed(page(2));
+        assertEquals(page(1), clock.chooseVictim(ANY));
+    }
+
+    /**
+     * Pages that may not be evicted are skipped, and null is returned when
+     * nothing can be evicted.
+     */
+    @Test public void skipsUnevictablePages() {
+        ReplacementPolicy[] policies = { new ClockReplacementPolicy(), new TwoQueueReplacementPolicy() };
+        for (ReplacementPolicy policy : policies) {
+            policy.setCapacity(2);
+            policy.pageAdded(page(0));
+            policy.pageAdded(page(1));
+            Set<PageId> pinned = new HashSet<PageId>();
+            pinned.add(page(0));
+            assertEquals(page(1), policy.chooseVictim(allBut(pinned)));
+            pinned.add(page(1));
+            assertNull(policy.chooseVictim(allBut(pinned)));
+            policy.pageRemoved(page(1));
+            pinned.remove(page(0));
+            assertEquals(page(0), policy.chooseVictim(allBut(pinned)));
+        }
+    }
+
+    /**
+     * Set up a policy of the given capacity with a hot set of pages 0 to 3,
+     * and return the set of pages it considers resident.
+     */
+    private static Set<PageId> warmUp(ReplacementPolicy policy, int capacity) {
+        policy.setCapacity(capacity);
+        Set<PageId> resident = new HashSet<PageId>();
+
+        // 2Q promotes pages that come back after being evicted, so cycle
+        // through enough cold pages for that
+        for (int round = 0; round < 4; round++) {
+            for (int hot = 0; hot < 4; hot++)
+                load(policy, resident, capacity, hot);
+            for (int cold = 0; cold < capacity; cold++)
+                load(policy, resident, capacity, 1000 + round * capacity + cold);
+        }
+        for (int hot = 0; hot < 4; hot++)
+            load(policy, resident, capacity, hot);
+        return resident;
+    }
+
+    /**
+     * residentPages() lists every resident page once, the hot set first.
+     */
+    @Test public void residentPagesHottestFirst() {
+        final int capacity = 16;
+        ReplacementPolicy[] policies = { new ClockReplacementPolicy(), new TwoQueueReplacementPolicy() };
+        for (ReplacementPolicy policy : policies) {
+            Set<PageId> resident = warmUp(policy, capacity);
+            List<PageId> pages = policy.residentPages();
+            assertEquals(resident, new HashSet<PageId>(pages));
+            assertEquals(resident.size(), pages.size());
+            for (int hot = 0; hot < 4; hot++)
+                assertTrue(policy.getClass().getName() + " doesn't list hot page " + hot + " first",
+                        pages.subList(0, 4).contains(page(hot)));
+        }
+    }
+
+    /**
+     * A sequential scan over many pages must not push out a small set of
+     * pages that are used over and over.
+     */
+    @Test public void scanResistance() {
+        final int capacity = 16;
+        ReplacementPolicy[] policies = { new ClockReplacementPolicy(), new TwoQueueReplacementPolicy() };
+        for (ReplacementPolicy policy : policies) {
+            Set<PageId> resident = warmUp(policy, capacity);
+
+            // interleave a long scan with accesses to the hot set
+            for (int i = 0; i < 200; i++) {
+                load(policy, resident, capacity, 10000 + i);
+                if (i % 4 == 0) {
+                    for (int hot = 0; hot < 4; hot++)
+                        load(policy, resident, capacity, hot);
+                }
+            }
+            for (int hot = 0; hot < 4; hot++)
+                assertTrue(policy.getClass().getName() + " evicted hot page " + hot,
+                        resident.contains(page(hot)));
+        }
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(ReplacementPolicyTest.class);
+    }
+}
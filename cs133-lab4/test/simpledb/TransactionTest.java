@@ -4,6 +4,8 @@ import java.util.*;
 import org.junit.Before;
 import org.junit.Test;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
 import junit.framework.JUnit4TestAdapter;
 
 public class TransactionTest extends TestUtil.CreateHeapFile {
@@ -112,6 +114,43 @@ public class TransactionTest extends TestUtil.CreateHeapFile {
     testTransactionComplete(false);
   }
 
+  private static boolean contains(HeapPage p, int f0, int f1) {
+    Iterator<Tuple> it = p.iterator();
+    while (it.hasNext()) {
+      Tuple tup = it.next();
+      if (((IntField) tup.getField(0)).getValue() == f0
+          && ((IntField) tup.getField(1)).getValue() == f1)
+        return true;
+    }
+    return false;
+  }
+
+  /**
+   * Unit test for BufferPool.writeCommittedPages().
+   * A commit leaves its pages to be written afterwards, and an abort
+   * that follows puts back the committed version, not the one on disk.
+   */
+  @Test public void writeCommittedPages() throws Exception {
+    HeapPage p = (HeapPage) bp.getPage(tid1, p2, Permissions.READ_WRITE);
+    p.insertTuple(Utility.getHeapTuple(new int[] { 6, 830 }));
+    p.markDirty(true, tid1);
+    bp.transactionComplete(tid1, true);
+
+    p = (HeapPage) bp.getPage(tid2, p2, Permissions.READ_WRITE);
+    p.insertTuple(Utility.getHeapTuple(new int[] { 7, 831 }));
+    p.markDirty(true, tid2);
+    bp.transactionComplete(tid2, false);
+
+    p = (HeapPage) bp.getPage(new TransactionId(), p2, Permissions.READ_ONLY);
+    assertTrue(contains(p, 6, 830));
+    assertFalse(contains(p, 7, 831));
+
+    bp.writeCommittedPages();
+    HeapPage onDisk = (HeapPage) empty.readPage(p2);
+    assertTrue(contains(onDisk, 6, 830));
+    assertFalse(contains(onDisk, 7, 831));
+  }
+
   /**
    * JUnit suite target
    */
@@ -0,0 +1,205 @@
+package simpledb.systemtest;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.*;
+
+import org.junit.Before;
+import org.junit.Test;
+import static org.junit.Assert.assertEquals;
+import junit.framework.JUnit4TestAdapter;
+
+import simpledb.*;
+
+/**
+ * Tests rollback and crash recovery end to end: transactions run against
+ * heap files, the database "crashes" by dropping the buffer pool without
+ * writing it, and the log is recovered.
+ */
+public class RecoveryTest extends SimpleDbTestBase {
+    private HeapFile hf1;
+    private HeapFile hf2;
+
+    @Before public void setUp() throws Exception {
+        super.setUp();
+        hf1 = createTable();
+        hf2 = createTable();
+    }
+
+    private static HeapFile createTable() throws IOException {
+        File f = File.createTempFile("recovery", ".dat");
+        f.deleteOnExit();
+        return Utility.createEmptyHeapFile(f.getAbsolutePath(), 2);
+    }
+
+    /** Inserts the rows (i, -i) for i in [from, to). */
+    private static void insert(TransactionId tid, HeapFile hf, int from, int to)
+            throws Exception {
+        for (int i = from; i < to; i++) {
+            Tuple t = new Tuple(hf.getTupleDesc());
+            t.setField(0, new IntField(i));
+            t.setField(1, new IntField(-i));
+            Database.getBufferPool().insertTuple(tid, hf.getId(), t);
+        }
+    }
+
+    /** Returns the first field of every row in hf's file on disk, sorted. */
+    private static List<Integer> onDisk(HeapFile hf) {
+        List<Integer> rows = new ArrayList<Integer>();
+        for (int i = 0; i < hf.numPages(); i++) {
+            HeapPage p = (HeapPage) hf.readPage(new HeapPageId(hf.getId(), i));
+            Iterator<Tuple> it = p.iterator();
+            while (it.hasNext())
+                rows.add(((IntField) it.next().getField(0)).getValue());
+        }
+        Collections.sort(rows);
+        return rows;
+    }
+
+    private static List<Integer> range(int from, int to) {
+        List<Integer> l = new ArrayList<Integer>();
+        for (int i = from; i < to; i++)
+            l.add(i);
+        return l;
+    }
+
+    /** Overwrites the first page of hf with an empty one, as if it was never written. */
+    private static void wipe(HeapFile hf) throws IOException {
+        hf.writePage(new HeapPage(new HeapPageId(hf.getId(), 0),
+                                  HeapPage.createEmptyPageData()));
+    }
+
+    /**
+     * A committed transaction whose pages never reached disk is redone
+     * from the log.
+     */
+    @Test public void commitSurvivesCrash() throws Exception {
+        Transaction t = new Transaction();
+        t.start();
+        insert(t.getId(), hf1, 0, 5);
+        t.commit();
+
+        Database.crash();
+        wipe(hf1);
+        Database.getLogFile().recover();
+        assertEquals(range(0, 5), onDisk(hf1));
+    }
+
+    /**
+     * A commit through BufferPool.transactionComplete() is as durable as
+     * one through Transaction.
+     */
+    @Test public void bufferPoolCommitSurvivesCrash() throws Exception {
+        TransactionId tid = new TransactionId();
+        insert(tid, hf1, 0, 5);
+        Database.getBufferPool().transactionComplete(tid, true);
+
+        Database.crash();
+        wipe(hf1);
+        Database.getLogFile().recover();
+        assertEquals(range(0, 5), onDisk(hf1));
+    }
+
+    /**
+     * Aborting a transaction whose page was stolen puts the committed
+     * version back on disk.
+     */
+    @Test public void abortAfterSteal() throws Exception {
+        Transaction t1 = new Transaction();
+        t1.start();
+        insert(t1.getId(), hf1, 0, 5);
+        t1.commit();
+
+        Transaction t2 = new Transaction();
+        t2.start();
+        insert(t2.getId(), hf1, 5, 8);
+        Database.getBufferPool().flushPages(t2.getId());
+        assertEquals(range(0, 8), onDisk(hf1));
+
+        t2.abort();
+        assertEquals(range(0, 5), onDisk(hf1));
+    }
+
+    /**
+     * A transaction still running at the crash is undone, even though
+     * its page was stolen.
+     */
+    @Test public void loserUndone() throws Exception {
+        Transaction t1 = new Transaction();
+        t1.start();
+        insert(t1.getId(), hf1, 0, 5);
+        t1.commit();
+
+        Transaction t2 = new Transaction();
+        t2.start();
+        insert(t2.getId(), hf1, 5, 8);
+        Database.getBufferPool().flushPages(t2.getId());
+
+        Database.crash();
+        assertEquals(range(0, 8), onDisk(hf1));
+        Database.getLogFile().recover();
+        assertEquals(range(0, 5), onDisk(hf1));
+    }
+
+    /**
+     * Recovery from a checkpoint taken while a transaction was running,
+     * with several recovery threads: the transaction that committed after
+     * the checkpoint is redone, and the one running at the crash, which
+     * began before the checkpoint, is undone.
+     */
+    @Test public void recoverFromFuzzyCheckpoint() throws Exception {
+        Transaction t1 = new Transaction();
+        t1.start();
+        insert(t1.getId(), hf1, 0, 5);
+        t1.commit();
+
+        Transaction t2 = new Transaction();
+        t2.start();
+        insert(t2.getId(), hf1, 5, 8);
+        Database.getBufferPool().flushPages(t2.getId());
+        Database.getLogFile().logCheckpoint();
+
+        Transaction t3 = new Transaction();
+        t3.start();
+        insert(t3.getId(), hf2, 100, 110);
+        t3.commit();
+        insert(t2.getId(), hf1, 8, 10);
+        Database.getBufferPool().flushPages(t2.getId());
+
+        Database.crash();
+        wipe(hf2);
+        Database.getLogFile().setRecoveryThreads(4);
+        Database.getLogFile().recover();
+        assertEquals(range(0, 5), onDisk(hf1));
+        assertEquals(range(100, 110), onDisk(hf2));
+    }
+
+    /**
+     * A delete that commits after a checkpoint stole the page with the
+     * row inserted stays deleted: the DELTA logged at commit is relative
+     * to the image the checkpoint logged, so redo doesn't bring the row
+     * back.
+     */
+    @Test public void deleteAfterStealSurvivesCrash() throws Exception {
+        Transaction t = new Transaction();
+        t.start();
+        insert(t.getId(), hf1, 0, 1);
+        Database.getLogFile().logCheckpoint();
+        DbFileIterator it = hf1.iterator(t.getId());
+        it.open();
+        Database.getBufferPool().deleteTuple(t.getId(), it.next());
+        it.close();
+        t.commit();
+
+        Database.crash();
+        Database.getLogFile().recover();
+        assertEquals(0, onDisk(hf1).size());
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(RecoveryTest.class);
+    }
+}
@@ -1,6 +1,7 @@
 package simpledb.systemtest;
 
 import java.io.IOException;
+import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.concurrent.BrokenBarrierException;
@@ -230,7 +231,7 @@ public class TransactionTest extends SimpleDbTestBase {
             throws IOException, DbException, TransactionAbortedException {
         // Allocate a file with ~10 pages of data
         HeapFile f = SystemTestUtil.createRandomHeapFile(2, 512*10, null, null);
-        Database.resetBufferPool(1);
+        Database.resetBufferPool(1).setSpilling(false);
 
         // BEGIN TRANSACTION
         Transaction t = new Transaction();
@@ -247,6 +248,74 @@ public class TransactionTest extends SimpleDbTestBase {
         t.commit();
     }
 
+    @Test public void testAllDirtySpills()
+            throws IOException, DbException, TransactionAbortedException {
+        HeapFile f = SystemTestUtil.createRandomHeapFile(2, 512*10, null, null);
+        Database.resetBufferPool(1);
+
+        Transaction t = new Transaction();
+        t.start();
+        EvictionTest.insertRow(f, t);
+
+        // the dirty page goes to the spill file and comes back
+        assertTrue(EvictionTest.findMagicTuple(f, t));
+        t.commit();
+
+        t = new Transaction();
+        t.start();
+        assertTrue(EvictionTest.findMagicTuple(f, t));
+        t.commit();
+    }
+
+    private static int countTuples(HeapFile f, Transaction t)
+            throws DbException, TransactionAbortedException {
+        SeqScan ss = new SeqScan(t.getId(), f.getId(), "");
+        int n = 0;
+        ss.open();
+        while (ss.hasNext()) {
+            ss.next();
+            n++;
+        }
+        ss.close();
+        return n;
+    }
+
+    private static void insertRows(HeapFile f, Transaction t, int rows)
+            throws DbException, TransactionAbortedException {
+        ArrayList<Tuple> tuples = new ArrayList<Tuple>();
+        for (int i = 0; i < rows; i++)
+            tuples.add(Utility.getHeapTuple(i, 2));
+        Insert insert = new Insert(t.getId(),
+                new TupleIterator(Utility.getTupleDesc(2), tuples), f.getId());
+        insert.open();
+        assertEquals(rows, ((IntField) insert.next().getField(0)).getValue());
+        insert.close();
+    }
+
+    @Test public void testBulkInsertLargerThanPool()
+            throws IOException, DbException, TransactionAbortedException {
+        HeapFile f = SystemTestUtil.createRandomHeapFile(2, 0, null, null);
+        Database.resetBufferPool(2);
+        // five pages of 504 tuples each
+        int rows = 504 * 5;
+
+        Transaction t = new Transaction();
+        t.start();
+        insertRows(f, t, rows);
+        t.transactionComplete(true);
+
+        t = new Transaction();
+        t.start();
+        assertEquals(0, countTuples(f, t));
+        insertRows(f, t, rows);
+        t.commit();
+
+        t = new Transaction();
+        t.start();
+        assertEquals(rows, countTuples(f, t));
+        t.commit();
+    }
+
     /** Make test compatible with older version of ant. */
     public static junit.framework.Test suite() {
         return new junit.framework.JUnit4TestAdapter(TransactionTest.class);